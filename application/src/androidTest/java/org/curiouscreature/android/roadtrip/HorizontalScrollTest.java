@@ -0,0 +1,105 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.view.View;
+
+/**
+ * Checks that the horizontal scroll listener of the rows allocates nothing.
+ * Allocations are counted by the runtime of the device, the only place where
+ * framework code can be measured: run with ./gradlew connectedAndroidTest.
+ */
+public class HorizontalScrollTest extends ActivityInstrumentationTestCase2<MainActivity> {
+    private static final long ROW_TIMEOUT_MS = 15000;
+    private static final long POLL_INTERVAL_MS = 100;
+
+    // Scroll events sent back and forth across the whole scroll range
+    private static final int SCROLL_EVENTS = 200;
+
+    public HorizontalScrollTest() {
+        super(MainActivity.class);
+    }
+
+    public void testScrollDoesNotAllocate() throws Throwable {
+        final TrackingHorizontalScrollView scroller = waitForFirstRow();
+        final int[] allocCount = new int[1];
+
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // The saturation filters and the state of the row are created
+                // on the first pass, only the second one must not allocate
+                scroll(scroller);
+
+                Debug.startAllocCounting();
+                Debug.resetThreadAllocCount();
+                scroll(scroller);
+                allocCount[0] = Debug.getThreadAllocCount();
+                Debug.stopAllocCounting();
+            }
+        });
+
+        assertEquals("Objects allocated by " + SCROLL_EVENTS + " scroll events",
+                0, allocCount[0]);
+    }
+
+    /**
+     * Sends scroll events to the listener of the row, as the scroll view
+     * does, from fully unscrolled to fully scrolled and back.
+     */
+    private static void scroll(TrackingHorizontalScrollView scroller) {
+        final int range = scroller.getWidth();
+        final int half = SCROLL_EVENTS / 2;
+
+        int previous = scroller.getScrollX();
+        for (int i = 0; i <= SCROLL_EVENTS; i++) {
+            int x = range * (i <= half ? i : SCROLL_EVENTS - i) / half;
+            scroller.onScrollChanged(x, 0, previous, 0);
+            previous = x;
+        }
+    }
+
+    /**
+     * Waits for the first row to be added and laid out, once the map of the
+     * intro is loaded and the photos of the first state are decoded.
+     */
+    private TrackingHorizontalScrollView waitForFirstRow() throws Throwable {
+        final StateListView list = (StateListView) getActivity().findViewById(R.id.container);
+        final TrackingHorizontalScrollView[] scroller = new TrackingHorizontalScrollView[1];
+
+        final long deadline = SystemClock.uptimeMillis() + ROW_TIMEOUT_MS;
+        while (SystemClock.uptimeMillis() < deadline) {
+            runTestOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    View row = list.getViewForPosition(0);
+                    if (row == null) return;
+                    View view = row.findViewById(R.id.scroller);
+                    if (view.getWidth() > 0) scroller[0] = (TrackingHorizontalScrollView) view;
+                }
+            });
+            if (scroller[0] != null) return scroller[0];
+            SystemClock.sleep(POLL_INTERVAL_MS);
+        }
+
+        fail("The first row was not added after " + ROW_TIMEOUT_MS + "ms");
+        return null;
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.animation.ValueAnimator;
+import android.graphics.Rect;
+import android.os.Build;
+import android.view.View;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the animators of views only while the views can be seen. Animators
+ * of views that are detached, invisible, or moved or scrolled off-screen are
+ * parked: they are cancelled, which removes them from the animation loop,
+ * and their play time is kept. When the view can be seen again they are
+ * started again at the same play time, and resume where they left off
+ * without going through the first frame of the animation.
+ *
+ * Since parking cancels the animators, their listeners are notified of a
+ * cancel every time, and may be notified of a start when they resume.
+ * Animators started with {@link #start(View, ValueAnimator)} must be
+ * cancelled with {@link #cancel(ValueAnimator)}, and must not have a start
+ * delay.
+ *
+ * Views must invoke {@link #update(View)} when they are attached to their
+ * window and when their visibility or the visibility of their window
+ * changes, and {@link #park(View)} when they are detached from their window.
+ * Changes of position must be reported with {@link #update(View)} as well,
+ * for the views that moved. Animators that ended are forgotten, and views
+ * and animators are only weakly referenced: a view that is never attached
+ * again does not outlive its activity. All the methods must be invoked from
+ * the UI thread.
+ */
+@SuppressWarnings("ForLoopReplaceableByForEach")
+final class AnimationScheduler {
+    private static final AnimationScheduler sInstance = new AnimationScheduler();
+
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private final Rect mTempRect = new Rect();
+
+    private static final class Entry {
+        final WeakReference<View> view;
+        final WeakReference<ValueAnimator> animator;
+        boolean parked;
+        long playTime;
+
+        Entry(View view, ValueAnimator animator) {
+            this.view = new WeakReference<View>(view);
+            this.animator = new WeakReference<ValueAnimator>(animator);
+        }
+
+        /**
+         * Indicates whether the entry can be forgotten: its animator ended
+         * or the view or the animator are gone.
+         */
+        boolean isDone() {
+            final ValueAnimator animator = this.animator.get();
+            return animator == null || view.get() == null || (!parked && !animator.isStarted());
+        }
+    }
+
+    private AnimationScheduler() {
+    }
+
+    static AnimationScheduler getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts the specified animator now if the view can be seen, or when it
+     * becomes visible otherwise.
+     */
+    void start(View view, ValueAnimator animator) {
+        Entry entry = find(animator);
+        if (entry == null) {
+            entry = new Entry(view, animator);
+            mEntries.add(entry);
+        }
+
+        entry.playTime = 0;
+        if (isVisible(view)) {
+            entry.parked = false;
+            animator.start();
+        } else {
+            entry.parked = true;
+        }
+    }
+
+    /**
+     * Cancels the specified animator, whether it is running or parked.
+     */
+    void cancel(ValueAnimator animator) {
+        Entry entry = find(animator);
+        if (entry != null) mEntries.remove(entry);
+        animator.cancel();
+    }
+
+    /**
+     * Parks or resumes the animators of the specified view, depending on
+     * whether the view can be seen.
+     */
+    void update(View view) {
+        final boolean visible = isVisible(view);
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry entry = mEntries.get(i);
+            if (entry.isDone()) {
+                mEntries.remove(i);
+            } else if (entry.view.get() == view) {
+                if (visible) {
+                    resume(entry);
+                } else {
+                    park(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parks the animators of the specified view, which is being detached
+     * from its window. They are resumed by {@link #update(View)} once the
+     * view is attached again and can be seen.
+     */
+    void park(View view) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry entry = mEntries.get(i);
+            if (entry.isDone()) {
+                mEntries.remove(i);
+            } else if (entry.view.get() == view) {
+                park(entry);
+            }
+        }
+    }
+
+    private static void park(Entry entry) {
+        final ValueAnimator animator = entry.animator.get();
+        if (entry.parked || animator == null || !animator.isStarted()) return;
+        entry.playTime = animator.getCurrentPlayTime();
+        entry.parked = true;
+        animator.cancel();
+    }
+
+    private static void resume(Entry entry) {
+        final ValueAnimator animator = entry.animator.get();
+        if (!entry.parked || animator == null) return;
+        entry.parked = false;
+
+        if (entry.playTime == 0) {
+            // Parked before it ever ran
+            animator.start();
+        } else if (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP) {
+            // The play time set before start() is kept as the start offset
+            animator.setCurrentPlayTime(entry.playTime);
+            animator.start();
+        } else {
+            // start() applies the first frame of the animation unless the
+            // animator has a start delay, which is only read again on the
+            // next frame. The play time set in between is kept as the offset
+            animator.setStartDelay(1);
+            animator.start();
+            animator.setCurrentPlayTime(entry.playTime);
+            animator.setStartDelay(0);
+        }
+    }
+
+    private boolean isVisible(View view) {
+        return view.getWindowVisibility() == View.VISIBLE && view.isShown() &&
+                view.getGlobalVisibleRect(mTempRect);
+    }
+
+    private Entry find(ValueAnimator animator) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.get(i);
+            if (entry.animator.get() == animator) return entry;
+        }
+        return null;
+    }
+}
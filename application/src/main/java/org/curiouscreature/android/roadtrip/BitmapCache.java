@@ -0,0 +1,171 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * LRU cache of decoded photos, keyed by resource and bounded by a number of
+ * bytes. Photos displayed on screen are acquired and cannot be evicted; once
+ * released they stay in the cache until the budget is exceeded. Evicted
+ * bitmaps are given to a bitmap pool to be reused by the next decodes.
+ */
+final class BitmapCache {
+    // Fraction of the memory class of the application used by the cache
+    private static final int MEMORY_CLASS_DIVIDER = 4;
+
+    private final LinkedHashMap<Integer, Entry> mEntries =
+            new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+    private final BitmapPool mPool;
+    private final int mMaxBytes;
+    private int mBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    private static final class Entry {
+        final Bitmap bitmap;
+        final int byteCount;
+        int refCount;
+
+        Entry(Bitmap bitmap) {
+            this.bitmap = bitmap;
+            this.byteCount = BitmapPool.getByteCount(bitmap);
+        }
+    }
+
+    BitmapCache(int maxBytes, BitmapPool pool) {
+        mMaxBytes = maxBytes;
+        mPool = pool;
+    }
+
+    /**
+     * Returns a budget suited to the memory class of the device.
+     */
+    static int computeMaxBytes(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVIDER;
+    }
+
+    /**
+     * Returns the cached bitmap for the specified resource and prevents it
+     * from being evicted until it is released, or null if the bitmap must
+     * be decoded.
+     */
+    synchronized Bitmap acquire(int resource) {
+        Entry entry = mEntries.get(resource);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        entry.refCount++;
+        return entry.bitmap;
+    }
+
+    /**
+     * Adds a decoded bitmap to the cache, acquired. If the resource was
+     * decoded concurrently, the bitmap already in the cache is acquired
+     * and returned instead, and the new bitmap goes to the pool.
+     */
+    synchronized Bitmap put(int resource, Bitmap bitmap) {
+        Entry entry = mEntries.get(resource);
+        if (entry != null) {
+            mPool.put(bitmap);
+        } else {
+            entry = new Entry(bitmap);
+            mEntries.put(resource, entry);
+            mBytes += entry.byteCount;
+        }
+        entry.refCount++;
+        trimLocked();
+        return entry.bitmap;
+    }
+
+    /**
+     * Releases a bitmap previously acquired. The bitmap must not be
+     * displayed anymore since it can be evicted and reused at any time.
+     */
+    synchronized void release(int resource) {
+        Entry entry = mEntries.get(resource);
+        if (entry == null || entry.refCount == 0) {
+            throw new IllegalStateException("Photo " + resource + " is not acquired");
+        }
+        entry.refCount--;
+        trimLocked();
+    }
+
+    /**
+     * Gives all the bitmaps to the pool. None of them must be displayed anymore.
+     */
+    synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            mPool.put(entry.bitmap);
+        }
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    synchronized int getByteCount() {
+        return mBytes;
+    }
+
+    int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    private void trimLocked() {
+        // Acquired bitmaps may keep the cache above its budget
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.refCount > 0) continue;
+
+            iterator.remove();
+            mBytes -= entry.byteCount;
+            mEvictionCount++;
+            mPool.put(entry.bitmap);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapCache{bytes=" + mBytes + "/" + mMaxBytes +
+                ", entries=" + mEntries.size() +
+                ", hits=" + mHitCount +
+                ", misses=" + mMissCount +
+                ", evictions=" + mEvictionCount + "}";
+    }
+}
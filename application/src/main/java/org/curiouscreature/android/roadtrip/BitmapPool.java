@@ -0,0 +1,121 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of mutable bitmaps that can be reused as BitmapFactory.Options.inBitmap.
+ * Before KitKat a bitmap can only be reused to decode an image of the exact
+ * same size; since KitKat any bitmap large enough can be reused.
+ */
+final class BitmapPool {
+    private final List<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+    private final int mMaxBytes;
+    private int mBytes;
+
+    BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a bitmap that can be used to decode an image of the specified
+     * size, or null if there is none. The bitmap is removed from the pool.
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        final int count = mBitmaps.size();
+        for (int i = 0; i < count; i++) {
+            Bitmap bitmap = mBitmaps.get(i);
+            if (canReuse(bitmap, width, height, config)) {
+                mBitmaps.remove(i);
+                mBytes -= getByteCount(bitmap);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives a bitmap back to the pool. The bitmap must not be used anymore.
+     * Bitmaps that cannot be reused are recycled.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        if (!bitmap.isMutable()) {
+            bitmap.recycle();
+            return;
+        }
+
+        mBitmaps.add(bitmap);
+        mBytes += getByteCount(bitmap);
+
+        // Drop the oldest bitmaps first
+        while (mBytes > mMaxBytes && !mBitmaps.isEmpty()) {
+            Bitmap evicted = mBitmaps.remove(0);
+            mBytes -= getByteCount(evicted);
+            evicted.recycle();
+        }
+    }
+
+    synchronized void clear() {
+        for (Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+        mBitmaps.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Indicates whether a decode can reuse a bitmap when it is scaled or
+     * subsampled, which is only possible since KitKat.
+     */
+    static boolean canReuseScaled() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean canReuse(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        if (bitmap.getConfig() != config) return false;
+        if (canReuseScaled()) {
+            return bitmap.getAllocationByteCount() >= width * height * bytesPerPixel(config);
+        }
+        return bitmap.getWidth() == width && bitmap.getHeight() == height;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    static int getByteCount(Bitmap bitmap) {
+        if (canReuseScaled()) return bitmap.getAllocationByteCount();
+        return bitmap.getByteCount();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.graphics.Rect;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Process-wide LRU cache of map geometry transformed for a given viewport,
+ * keyed by (resource, width, height). The cache is bounded by an estimate
+ * of the memory used by the cached polylines. Viewports missing from the
+ * cache are transformed from the levels of detail of the map, see
+ * {@link MapLevels}.
+ */
+final class GeometryCache {
+    private static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    // Rough cost of the objects wrapping the arrays of a polyline
+    private static final int BYTES_PER_PATH = 64;
+
+    private static GeometryCache sInstance;
+
+    private final LinkedHashMap<Key, Viewport> mEntries =
+            new LinkedHashMap<Key, Viewport>(16, 0.75f, true);
+    private int mMaxBytes;
+    private int mBytes;
+
+    /**
+     * Immutable geometry of a map for a viewport. The polylines must not be modified.
+     */
+    static final class Viewport {
+        final Polyline[] polylines;
+        final Rect[] bounds;
+
+        // Transform from document coordinates to viewport coordinates
+        final float scale;
+        final float dx;
+        final float dy;
+
+        final int byteCount;
+
+        Viewport(Polyline[] polylines, Rect[] bounds, float scale, float dx, float dy) {
+            this.polylines = polylines;
+            this.bounds = bounds;
+            this.scale = scale;
+            this.dx = dx;
+            this.dy = dy;
+
+            int bytes = 0;
+            for (Polyline polyline : polylines) {
+                bytes += BYTES_PER_PATH + polyline.getByteCount();
+            }
+            this.byteCount = bytes;
+        }
+    }
+
+    private static final class Key {
+        final int resource;
+        final int width;
+        final int height;
+
+        Key(int resource, int width, int height) {
+            this.resource = resource;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return resource == key.resource && width == key.width && height == key.height;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = resource;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return result;
+        }
+    }
+
+    GeometryCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    static synchronized GeometryCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new GeometryCache(DEFAULT_MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    synchronized int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    synchronized void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+        trimLocked();
+    }
+
+    synchronized Viewport get(int resource, int width, int height) {
+        return mEntries.get(new Key(resource, width, height));
+    }
+
+    synchronized void put(int resource, int width, int height, Viewport viewport) {
+        Viewport previous = mEntries.put(new Key(resource, width, height), viewport);
+        if (previous != null) mBytes -= previous.byteCount;
+        mBytes += viewport.byteCount;
+        trimLocked();
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    private void trimLocked() {
+        Iterator<Viewport> iterator = mEntries.values().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            mBytes -= iterator.next().byteCount;
+            iterator.remove();
+        }
+    }
+}
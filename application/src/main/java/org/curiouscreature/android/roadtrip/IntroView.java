@@ -23,25 +23,75 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.*;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.View;
 import android.view.animation.LinearInterpolator;
 
-import java.util.ArrayList;
-import java.util.List;
-
 @SuppressWarnings({"ForLoopReplaceableByForEach", "UnusedDeclaration"})
 public class IntroView extends View {
-    private static final String LOG_TAG = "IntroView";
-
     private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
 
     private final SvgHelper mSvg = new SvgHelper(mPaint);
+    // Segments drawn by a LineBatch have no joins, round caps hide the difference
+    private Paint mBatchPaint;
     private int mSvgResource;
 
-    private final Object mSvgLock = new Object();
-    private List<SvgHelper.SvgPath> mPaths = new ArrayList<SvgHelper.SvgPath>(0);
-    private Thread mLoader;
+    // Published by the loader with a single volatile write, never locked.
+    // onDraw() and setPhase() only ever see a fully built set
+    private volatile SvgHelper.PathSet mPathSet = SvgHelper.PathSet.EMPTY;
+    // Used once the map is fully revealed
+    private final StaticFrameCache mFrameCache = new StaticFrameCache();
+    // Builds the frame cache after a frame drawn at phase 1, outside of the draw pass
+    private final Runnable mBuildFrameCache = new Runnable() {
+        @Override
+        public void run() {
+            mFrameCachePending = false;
+            if (mAttached && mPhase >= 1.0f && !mFrameCache.isValid()) {
+                mFrameCache.build(mPathSet, mBatchPaint);
+            }
+        }
+    };
+    private boolean mFrameCachePending;
+    private final MapLoader mLoader = new MapLoader(MapLoader.PRIORITY_HIGH, new MapLoader.Callback() {
+        @Override
+        public SvgHelper.PathSet onLoad(int width, int height) {
+            mSvg.load(getContext(), mSvgResource);
+            // The new set is not visible to the UI thread yet, prepare it here
+            SvgHelper.PathSet pathSet = mSvg.getPathsForViewport(width, height);
+            pathSet.setPhase(mPhase);
+            return pathSet;
+        }
+
+        @Override
+        public void onLoaded(SvgHelper.PathSet pathSet) {
+            if (!mAttached) {
+                // Do not keep the map pinned, load it again once attached
+                mSvg.release();
+                mReloadOnAttach = true;
+                return;
+            }
+
+            // Catch up with phase changes that happened during the load
+            pathSet.setPhase(mPhase);
+            mPathSet = pathSet;
+            mFrameCache.invalidate();
+
+            mLayerDecision = LayerPolicy.decide(getContext(), pathSet, true, getWidth(), getHeight());
+            LayerPolicy.apply(IntroView.this, mLayerDecision);
+
+            invalidate();
+
+            invokeReadyListener();
+            AnimationScheduler scheduler = AnimationScheduler.getInstance();
+            scheduler.cancel(mSvgAnimator);
+            scheduler.start(IntroView.this, mSvgAnimator);
+        }
+
+        @Override
+        public void onCancelled() {
+            // The load may have acquired the map after onDetachedFromWindow() released it
+            if (!mAttached) mSvg.release();
+        }
+    });
 
     private SvgHelper.SvgPath mWaitPath;
     private SvgHelper.SvgPath mDragPath;
@@ -49,7 +99,7 @@ public class IntroView extends View {
     private int mArrowLength;
     private int mArrowHeight;
 
-    private float mPhase;
+    private volatile float mPhase;
     private float mWait;
     private float mDrag;
 
@@ -63,6 +113,19 @@ public class IntroView extends View {
 
     private OnReadyListener mListener;
 
+    private LayerPolicy.Decision mLayerDecision;
+
+    // UI thread only. A detached view does not hold its map, loads that
+    // complete while it is detached start again once it is attached
+    private boolean mAttached;
+    private boolean mReloadOnAttach;
+
+    // Regions invalidated by the animations, in view coordinates
+    private final RectF mDirtyBounds = new RectF();
+    private final Rect mDirtyRect = new Rect();
+
+    private final RenderMetrics mMetrics = RenderMetrics.get("IntroView");
+
     public static interface OnReadyListener {
         void onReady();
     }
@@ -79,6 +142,7 @@ public class IntroView extends View {
             if (a != null) {
                 mPaint.setStrokeWidth(a.getFloat(R.styleable.IntroView_strokeWidth, 1.0f));
                 mPaint.setColor(a.getColor(R.styleable.IntroView_strokeColor, 0xff000000));
+                mSvg.setBatched(a.getBoolean(R.styleable.IntroView_batchPaths, false));
                 mPhase = a.getFloat(R.styleable.IntroView_phase, 1.0f);
                 mDuration = a.getInt(R.styleable.IntroView_duration, 4000);
                 mFadeFactor = a.getFloat(R.styleable.IntroView_fadeFactor, 10.0f);
@@ -95,17 +159,14 @@ public class IntroView extends View {
 
     private void init() {
         mPaint.setStyle(Paint.Style.STROKE);
+        mBatchPaint = new Paint(mPaint);
+        mBatchPaint.setStrokeCap(Paint.Cap.ROUND);
 
         createWaitPath();
 
-        // Note: using a software layer here is an optimization. This view works with
-        // hardware accelerated rendering but every time a path is modified (when the
-        // dash path effect is modified), the graphics pipeline will rasterize the path
-        // again in a new texture. Since we are dealing with dozens of paths, it is much
-        // more efficient to rasterize the entire view into a single re-usable texture
-        // instead. Ideally this should be toggled using a heuristic based on the number
-        // and or dimensions of paths to render.
-        // Note that PathDashPathEffects can lead to clipping issues with hardware rendering.
+        // Note: the wait and drag indicators use PathDashPathEffects, which can
+        // lead to clipping issues with hardware rendering. Start with a software
+        // layer, the layer type is chosen by LayerPolicy once the map is loaded.
         setLayerType(LAYER_TYPE_SOFTWARE, null);
 
         mSvgAnimator = ObjectAnimator.ofFloat(this, "phase", 0.0f, 1.0f).setDuration(mDuration);
@@ -114,7 +175,8 @@ public class IntroView extends View {
         mWaitAnimator.setRepeatMode(ObjectAnimator.RESTART);
         mWaitAnimator.setRepeatCount(ObjectAnimator.INFINITE);
         mWaitAnimator.setInterpolator(new LinearInterpolator());
-        mWaitAnimator.start();
+        // Started once the view is attached and visible
+        AnimationScheduler.getInstance().start(this, mWaitAnimator);
     }
 
     private void createWaitPath() {
@@ -143,7 +205,7 @@ public class IntroView extends View {
         alpha.addListener(new AnimatorListenerAdapter() {
             @Override
             public void onAnimationEnd(Animator animation) {
-                mWaitAnimator.cancel();
+                AnimationScheduler.getInstance().cancel(mWaitAnimator);
                 ObjectAnimator.ofFloat(IntroView.this, "drag",
                         1.0f, 0.0f).setDuration(mDuration / 3).start();
             }
@@ -155,21 +217,29 @@ public class IntroView extends View {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        synchronized (mSvgLock) {
-            canvas.save();
-            canvas.translate(getPaddingLeft(), getPaddingTop() - getPaddingBottom());
-            final int count = mPaths.size();
-            for (int i = 0; i < count; i++) {
-                SvgHelper.SvgPath svgPath = mPaths.get(i);
+        final long start = RenderMetrics.start();
+        int drawnPaths = 0;
+        int drawnVertices = 0;
 
-                // We use the fade factor to speed up the alpha animation
-                int alpha = (int) (Math.min(mPhase * mFadeFactor, 1.0f) * 255.0f);
-                svgPath.paint.setAlpha(alpha);
+        final int alpha = getMapAlpha(mPhase);
 
-                canvas.drawPath(svgPath.renderPath, svgPath.paint);
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop() - getPaddingBottom());
+        if (mPhase >= 1.0f && mFrameCache.isValid()) {
+            mFrameCache.draw(canvas, mPaint.getColor(), alpha);
+        } else {
+            mPathSet.draw(canvas, mBatchPaint, alpha);
+            if (start != 0) {
+                drawnPaths = mPathSet.paths.size();
+                drawnVertices = mPathSet.getRenderPointCount();
+            }
+            // The cache allocates a bitmap, build it once this frame is drawn
+            if (mPhase >= 1.0f && !mFrameCachePending) {
+                mFrameCachePending = true;
+                post(mBuildFrameCache);
             }
-            canvas.restore();
         }
+        canvas.restore();
 
         canvas.save();
         canvas.translate(0.0f, getHeight() - getPaddingBottom() - mRadius * 3.0f);
@@ -182,41 +252,60 @@ public class IntroView extends View {
             canvas.drawPath(mDragPath.path, mArrowPaint);
         }
         canvas.restore();
+
+        mMetrics.recordDraw(start, drawnPaths, drawnVertices);
     }
 
     @Override
-    protected void onSizeChanged(final int w, final int h, int oldw, int oldh) {
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
 
-        if (mLoader != null) {
-            try {
-                mLoader.join();
-            } catch (InterruptedException e) {
-                Log.e(LOG_TAG, "Unexpected error", e);
-            }
+        mFrameCache.invalidate();
+        mLoader.load(w - getPaddingLeft() - getPaddingRight(),
+                h - getPaddingTop() - getPaddingBottom());
+
+        // Views without a size are not visible, animators may have been parked
+        AnimationScheduler.getInstance().update(this);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+        if (mReloadOnAttach) {
+            mReloadOnAttach = false;
+            mLoader.load(getWidth() - getPaddingLeft() - getPaddingRight(),
+                    getHeight() - getPaddingTop() - getPaddingBottom());
         }
+        AnimationScheduler.getInstance().update(this);
+    }
 
-        mLoader = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                mSvg.load(getContext(), mSvgResource);
-                synchronized (mSvgLock) {
-                    mPaths = mSvg.getPathsForViewport(
-                            w - getPaddingLeft() - getPaddingRight(),
-                            h - getPaddingTop() - getPaddingBottom());
-                    updatePathsPhaseLocked();
-                }
-                post(new Runnable() {
-                    @Override
-                    public void run() {
-                        invokeReadyListener();
-                        if (mSvgAnimator.isRunning()) mSvgAnimator.cancel();
-                        mSvgAnimator.start();
-                    }
-                });
-            }
-        }, "SVG Loader");
-        mLoader.start();
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        AnimationScheduler.getInstance().update(this);
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        AnimationScheduler.getInstance().update(this);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // Resumed by onAttachedToWindow(), if the view is attached again
+        AnimationScheduler.getInstance().park(this);
+        mAttached = false;
+        // A load that did not complete acquires the map again once attached
+        mReloadOnAttach = mLoader.cancel();
+        // The paths built for the current size remain valid, only the shared
+        // map is released. It will be acquired again on the next size change
+        mSvg.release();
+        removeCallbacks(mBuildFrameCache);
+        mFrameCachePending = false;
+        mFrameCache.invalidate();
     }
 
     private void invokeReadyListener() {
@@ -227,15 +316,12 @@ public class IntroView extends View {
         mListener = listener;
     }
 
-    private void updatePathsPhaseLocked() {
-        final int count = mPaths.size();
-        for (int i = 0; i < count; i++) {
-            SvgHelper.SvgPath svgPath = mPaths.get(i);
-            svgPath.renderPath.reset();
-            svgPath.measure.getSegment(0.0f, svgPath.length * mPhase, svgPath.renderPath, true);
-            // Required only for Android 4.4 and earlier
-            svgPath.renderPath.rLineTo(0.0f, 0.0f);
-        }
+    /**
+     * Returns the layer type decision made for the current map, or null if
+     * the map is not loaded yet.
+     */
+    LayerPolicy.Decision getLayerDecision() {
+        return mLayerDecision;
     }
 
     public float getPhase() {
@@ -243,11 +329,45 @@ public class IntroView extends View {
     }
 
     public void setPhase(float phase) {
+        final float previousPhase = mPhase;
         mPhase = phase;
-        synchronized (mSvgLock) {
-            updatePathsPhaseLocked();
+        final long start = RenderMetrics.start();
+        final boolean changed = mPathSet.setPhase(phase);
+        mMetrics.recordPhaseUpdate(start);
+        if (phase < 1.0f) mFrameCache.invalidate();
+
+        // Only the segments revealed or erased need to be drawn again,
+        // unless the opacity of the whole map changed
+        if (getMapAlpha(previousPhase) != getMapAlpha(phase)) {
+            mDirtyBounds.set(mPathSet.bounds);
+        } else if (!changed || !mPathSet.getDirtyBounds(mDirtyBounds)) {
+            return;
         }
-        invalidate();
+        mDirtyBounds.offset(getPaddingLeft(), getPaddingTop() - getPaddingBottom());
+        invalidateBounds(mDirtyBounds, mPaint.getStrokeWidth() / 2.0f);
+    }
+
+    private int getMapAlpha(float phase) {
+        // We use the fade factor to speed up the alpha animation
+        return (int) (Math.min(phase * mFadeFactor, 1.0f) * 255.0f);
+    }
+
+    /**
+     * Invalidates the specified bounds, outset by the specified distance and
+     * by one pixel for antialiasing.
+     */
+    private void invalidateBounds(RectF bounds, float outset) {
+        bounds.inset(-outset - 1.0f, -outset - 1.0f);
+        bounds.roundOut(mDirtyRect);
+        invalidate(mDirtyRect);
+    }
+
+    /**
+     * Returns the distance by which the arrows drawn along the wait and drag
+     * indicators can extend beyond the indicators.
+     */
+    private float getIndicatorOutset() {
+        return Math.max(mArrowLength, mArrowHeight) + mWaitPath.paint.getStrokeWidth();
     }
 
     public float getWait() {
@@ -258,7 +378,11 @@ public class IntroView extends View {
         mWait = wait;
         mWaitPath.paint.setPathEffect(createConcaveArrowPathEffect(mWaitPath.length, mWait, 32.0f));
 
-        invalidate();
+        // Same transform as onDraw()
+        float x = getWidth() / 2.0f - mRadius * 3.0f;
+        float y = getHeight() - getPaddingBottom() - mRadius * 2.0f;
+        mDirtyBounds.set(x, y, x + mRadius * 6.0f, y);
+        invalidateBounds(mDirtyBounds, getIndicatorOutset());
     }
 
     public float getDrag() {
@@ -275,7 +399,11 @@ public class IntroView extends View {
         mDragPath.paint.setAlpha(alpha);
         mArrowPaint.setAlpha(alpha);
 
-        invalidate();
+        // Same transform as onDraw()
+        mDirtyBounds.set(mDragPath.bounds);
+        mDirtyBounds.offset((getWidth() - mDragPath.bounds.width()) / 2.0f,
+                getHeight() - getPaddingBottom() - mRadius * 3.0f);
+        invalidateBounds(mDirtyBounds, getIndicatorOutset());
     }
 
     private static PathEffect createPathEffect(float pathLength, float phase, float offset) {
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Rect;
+import android.os.Build;
+import android.view.View;
+
+import java.util.List;
+
+/**
+ * Chooses the layer type of a view drawing animated paths.
+ *
+ * With hardware rendering, every path modified by an animation is rasterized
+ * again into a new texture. When a view animates many paths it is cheaper to
+ * rasterize the entire view into a single software layer. A software layer is
+ * however expensive to rasterize when the paths have many vertices, and costs
+ * memory proportional to the size of the view; above those limits a hardware
+ * layer is used instead. The whole software layer is uploaded again every time
+ * it changes: when the paths only cover a small part of the view, most of that
+ * upload is empty and a hardware layer is used as well. Views animating only a
+ * few small paths do not need a layer at all.
+ *
+ * PathDashPathEffects can lead to clipping issues with hardware rendering,
+ * views using them get a software layer unless it exceeds the vertex or
+ * memory limits.
+ */
+final class LayerPolicy {
+    /**
+     * Thresholds of the cost model. Defaults are provided for regular and
+     * low-RAM devices, see {@link #setThresholds(Thresholds)} to tune them.
+     */
+    static final class Thresholds {
+        /**
+         * Maximum number of animated paths drawn without a layer.
+         */
+        final int maxPathsWithoutLayer;
+        /**
+         * Maximum number of animated vertices drawn without a layer.
+         */
+        final int maxVerticesWithoutLayer;
+        /**
+         * Maximum number of vertices rasterized in a software layer.
+         */
+        final int maxSoftwareVertices;
+        /**
+         * Maximum area, in pixels, of a software layer.
+         */
+        final long maxSoftwareArea;
+        /**
+         * Minimum fraction of a software layer covered by the bounds of the paths.
+         */
+        final float minSoftwareCoverage;
+
+        Thresholds(int maxPathsWithoutLayer, int maxVerticesWithoutLayer,
+                int maxSoftwareVertices, long maxSoftwareArea, float minSoftwareCoverage) {
+            this.maxPathsWithoutLayer = maxPathsWithoutLayer;
+            this.maxVerticesWithoutLayer = maxVerticesWithoutLayer;
+            this.maxSoftwareVertices = maxSoftwareVertices;
+            this.maxSoftwareArea = maxSoftwareArea;
+            this.minSoftwareCoverage = minSoftwareCoverage;
+        }
+
+        @Override
+        public String toString() {
+            return "Thresholds{paths=" + maxPathsWithoutLayer +
+                    ", vertices=" + maxVerticesWithoutLayer +
+                    ", softwareVertices=" + maxSoftwareVertices +
+                    ", softwareArea=" + maxSoftwareArea +
+                    ", softwareCoverage=" + minSoftwareCoverage + "}";
+        }
+    }
+
+    // Calibrated on the bundled maps: the state maps have 5 to 11 paths and
+    // less than 1000 vertices, the map of the intro 52 paths and about 3000
+    // vertices. A software layer of 1M pixels costs 4MB, about a 720p screen
+    static final Thresholds DEFAULT_THRESHOLDS =
+            new Thresholds(8, 500, 20000, 1024 * 1024, 0.25f);
+    static final Thresholds LOW_RAM_THRESHOLDS =
+            new Thresholds(8, 500, 8000, 512 * 1024, 0.25f);
+
+    /**
+     * The layer type chosen for a view and the inputs of the decision.
+     */
+    static final class Decision {
+        final int layerType;
+        final String reason;
+
+        final int pathCount;
+        final int vertexCount;
+        final long boundsArea;
+        final long viewArea;
+        final boolean usesPathEffects;
+
+        Decision(int layerType, String reason, int pathCount, int vertexCount,
+                long boundsArea, long viewArea, boolean usesPathEffects) {
+            this.layerType = layerType;
+            this.reason = reason;
+            this.pathCount = pathCount;
+            this.vertexCount = vertexCount;
+            this.boundsArea = boundsArea;
+            this.viewArea = viewArea;
+            this.usesPathEffects = usesPathEffects;
+        }
+
+        @Override
+        public String toString() {
+            return "Decision{" + layerTypeToString(layerType) + " (" + reason + ")" +
+                    ", paths=" + pathCount +
+                    ", vertices=" + vertexCount +
+                    ", boundsArea=" + boundsArea +
+                    ", viewArea=" + viewArea +
+                    ", pathEffects=" + usesPathEffects + "}";
+        }
+    }
+
+    private static Thresholds sThresholds;
+
+    private LayerPolicy() {
+    }
+
+    /**
+     * Overrides the thresholds used for subsequent decisions. Passing null
+     * restores the defaults for the current device class.
+     */
+    static synchronized void setThresholds(Thresholds thresholds) {
+        sThresholds = thresholds;
+    }
+
+    static synchronized Thresholds getThresholds(Context context) {
+        if (sThresholds == null) {
+            sThresholds = isLowRamDevice(context) ? LOW_RAM_THRESHOLDS : DEFAULT_THRESHOLDS;
+        }
+        return sThresholds;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean isLowRamDevice(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return am.isLowRamDevice();
+        }
+        return am.getMemoryClass() <= 32;
+    }
+
+    /**
+     * Scores the specified paths, drawn in a view of the specified size.
+     */
+    static Decision decide(Context context, SvgHelper.PathSet pathSet,
+            boolean usesPathEffects, int width, int height) {
+        final Thresholds thresholds = getThresholds(context);
+
+        final List<SvgHelper.SvgPath> paths = pathSet.paths;
+        final int pathCount = paths.size();
+
+        int vertexCount = 0;
+        Rect bounds = new Rect();
+        for (int i = 0; i < pathCount; i++) {
+            SvgHelper.SvgPath svgPath = paths.get(i);
+            if (svgPath.polyline != null) vertexCount += svgPath.polyline.pointCount;
+            bounds.union(svgPath.bounds);
+        }
+        final long boundsArea = (long) bounds.width() * bounds.height();
+        final long viewArea = (long) width * height;
+
+        int layerType;
+        String reason;
+        if (!usesPathEffects && pathCount <= thresholds.maxPathsWithoutLayer &&
+                vertexCount <= thresholds.maxVerticesWithoutLayer) {
+            layerType = View.LAYER_TYPE_NONE;
+            reason = "few paths";
+        } else if (vertexCount > thresholds.maxSoftwareVertices) {
+            layerType = View.LAYER_TYPE_HARDWARE;
+            reason = "too many vertices for software";
+        } else if (viewArea > thresholds.maxSoftwareArea) {
+            layerType = View.LAYER_TYPE_HARDWARE;
+            reason = "view too large for software";
+        } else if (usesPathEffects) {
+            layerType = View.LAYER_TYPE_SOFTWARE;
+            reason = "path effects";
+        } else if (boundsArea < viewArea * thresholds.minSoftwareCoverage) {
+            layerType = View.LAYER_TYPE_HARDWARE;
+            reason = "paths cover little of the view";
+        } else {
+            layerType = View.LAYER_TYPE_SOFTWARE;
+            reason = "many animated paths";
+        }
+
+        return new Decision(layerType, reason, pathCount, vertexCount,
+                boundsArea, viewArea, usesPathEffects);
+    }
+
+    /**
+     * Applies the layer type of the specified decision, if it differs from
+     * the current layer type of the view.
+     */
+    static void apply(View view, Decision decision) {
+        if (view.getLayerType() != decision.layerType) {
+            view.setLayerType(decision.layerType, null);
+        }
+    }
+
+    static String layerTypeToString(int layerType) {
+        switch (layerType) {
+            case View.LAYER_TYPE_SOFTWARE:
+                return "software";
+            case View.LAYER_TYPE_HARDWARE:
+                return "hardware";
+            default:
+                return "none";
+        }
+    }
+}
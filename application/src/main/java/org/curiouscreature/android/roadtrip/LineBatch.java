@@ -0,0 +1,235 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Draws the revealed part of a set of paths sharing the same paint with a
+ * couple of calls to {@link Canvas#drawLines(float[], int, int, Paint)}.
+ *
+ * The segments of all the paths are stored in a single buffer, sorted by the
+ * phase at which they are fully revealed. For a given phase the fully revealed
+ * segments are therefore always at the beginning of the buffer and setting the
+ * phase only finds how many of them to draw. The last, partially revealed,
+ * segment of each path is computed in a second, smaller buffer. No path is
+ * rebuilt and nothing is allocated after construction. For the same reason,
+ * the segments completed or erased by a new phase are contiguous: the bounds
+ * of what changed are those segments, and the part of the segment of each
+ * path between the two phases.
+ *
+ * Segments are drawn independently of each other, without joins: the paint
+ * should use round caps to hide the difference with a stroked path.
+ */
+final class LineBatch {
+    private final Polyline[] mPolylines;
+
+    // Segments as (x0, y0, x1, y1), sorted by mEndPhases
+    private final float[] mSegments;
+    private final float[] mEndPhases;
+    private final float[] mPartials;
+    // Part of a segment changed by the last call to setPhase()
+    private final float[] mDirtySegment = new float[4];
+
+    private int mSegmentCount;
+    private int mPartialCount;
+    // Nothing is drawn before the first call to setPhase()
+    private float mPhase;
+
+    // Bounds of the parts of the paths drawn or erased by the last call to setPhase()
+    private final RectF mDirtyBounds = new RectF();
+    private boolean mDirty;
+
+    private LineBatch(Polyline[] polylines, float[] segments, float[] endPhases) {
+        mPolylines = polylines;
+        mSegments = segments;
+        mEndPhases = endPhases;
+        mPartials = new float[polylines.length * 4];
+    }
+
+    /**
+     * Creates a batch from the specified paths, or returns null if some of
+     * the paths were not created from a polyline.
+     */
+    static LineBatch create(List<SvgHelper.SvgPath> paths) {
+        final int count = paths.size();
+        Polyline[] polylines = new Polyline[count];
+
+        int segmentCount = 0;
+        for (int i = 0; i < count; i++) {
+            Polyline polyline = paths.get(i).polyline;
+            if (polyline == null) return null;
+            polylines[i] = polyline;
+            segmentCount += Math.max(0, polyline.pointCount - 1);
+        }
+
+        // Sort the segments by end phase using the bits of the phase, which
+        // is positive, as the high part of a long and the index as the low part
+        long[] keys = new long[segmentCount];
+        float[] unsorted = new float[segmentCount * 4];
+        int n = 0;
+        for (Polyline polyline : polylines) {
+            if (polyline.length <= 0.0f) continue;
+
+            final float[] points = polyline.points;
+            final float[] lengths = polyline.lengths;
+            int contour = 1;
+            for (int j = 0; j < polyline.pointCount - 1; j++) {
+                if (contour < polyline.contours.length && polyline.contours[contour] == j + 1) {
+                    contour++;
+                    continue;
+                }
+                if (lengths[j + 1] <= lengths[j]) continue;
+
+                float endPhase = lengths[j + 1] / polyline.length;
+                keys[n] = ((long) Float.floatToIntBits(endPhase) << 32) | n;
+                System.arraycopy(points, j * 2, unsorted, n * 4, 4);
+                n++;
+            }
+        }
+        Arrays.sort(keys, 0, n);
+
+        float[] segments = new float[n * 4];
+        float[] endPhases = new float[n];
+        for (int i = 0; i < n; i++) {
+            int index = (int) keys[i];
+            System.arraycopy(unsorted, index * 4, segments, i * 4, 4);
+            endPhases[i] = Float.intBitsToFloat((int) (keys[i] >>> 32));
+        }
+
+        return new LineBatch(polylines, segments, endPhases);
+    }
+
+    /**
+     * Reveals every path up to phase * length.
+     */
+    void setPhase(float phase) {
+        final float previousPhase = mPhase;
+        final int previousSegmentCount = mSegmentCount;
+        mPhase = phase;
+        mDirty = false;
+
+        // Number of segments whose end phase is less than or equal to the phase
+        int low = 0;
+        int high = mEndPhases.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mEndPhases[mid] <= phase) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        mSegmentCount = low;
+
+        // Segments whose end phase lies between the two phases
+        addDirtySegments(mSegments, Math.min(previousSegmentCount, mSegmentCount),
+                Math.max(previousSegmentCount, mSegmentCount));
+
+        final float minPhase = Math.min(previousPhase, phase);
+        final float maxPhase = Math.max(previousPhase, phase);
+        int partialCount = 0;
+        for (Polyline polyline : mPolylines) {
+            final float distance = polyline.length * phase;
+            final int last = polyline.indexOf(distance);
+            if (isPartial(polyline, last, distance)) {
+                final int offset = partialCount * 4;
+                setPoint(polyline, last, polyline.lengths[last], mPartials, offset);
+                setPoint(polyline, last, distance, mPartials, offset + 2);
+                partialCount++;
+            }
+
+            // The segment ending after the higher phase only changed from
+            // the lower phase on, or from its start
+            final float maxDistance = polyline.length * maxPhase;
+            final int segment = maxPhase == phase ? last : polyline.indexOf(maxDistance);
+            if (isPartial(polyline, segment, maxDistance)) {
+                final float minDistance =
+                        Math.max(polyline.length * minPhase, polyline.lengths[segment]);
+                setPoint(polyline, segment, minDistance, mDirtySegment, 0);
+                setPoint(polyline, segment, maxDistance, mDirtySegment, 2);
+                addDirtySegments(mDirtySegment, 0, 1);
+            }
+        }
+        mPartialCount = partialCount;
+    }
+
+    /**
+     * Indicates whether the specified distance lies strictly inside the
+     * segment starting at the specified point.
+     */
+    private static boolean isPartial(Polyline polyline, int index, float distance) {
+        final int next = index + 1;
+        return next < polyline.pointCount && !polyline.isContourStart(next) &&
+                distance > polyline.lengths[index];
+    }
+
+    /**
+     * Stores the point at the specified distance, along the segment starting
+     * at the specified point, in the specified buffer.
+     */
+    private static void setPoint(Polyline polyline, int index, float distance,
+            float[] dst, int offset) {
+        final float[] points = polyline.points;
+        final float[] lengths = polyline.lengths;
+        final int next = index + 1;
+        final float t = (distance - lengths[index]) / (lengths[next] - lengths[index]);
+        dst[offset] = points[index * 2] + (points[next * 2] - points[index * 2]) * t;
+        dst[offset + 1] = points[index * 2 + 1] + (points[next * 2 + 1] - points[index * 2 + 1]) * t;
+    }
+
+    /**
+     * Computes the bounds of the parts of the paths drawn or erased by the
+     * last call to {@link #setPhase(float)}, without the stroke.
+     *
+     * @return False if nothing changed
+     */
+    boolean getDirtyBounds(RectF bounds) {
+        if (mDirty) bounds.set(mDirtyBounds);
+        return mDirty;
+    }
+
+    private void addDirtySegments(float[] segments, int start, int end) {
+        for (int i = start * 4; i < end * 4; i += 2) {
+            final float x = segments[i];
+            final float y = segments[i + 1];
+            if (mDirty) {
+                mDirtyBounds.union(x, y);
+            } else {
+                mDirtyBounds.set(x, y, x, y);
+                mDirty = true;
+            }
+        }
+    }
+
+    void draw(Canvas canvas, Paint paint) {
+        if (mSegmentCount > 0) canvas.drawLines(mSegments, 0, mSegmentCount * 4, paint);
+        if (mPartialCount > 0) canvas.drawLines(mPartials, 0, mPartialCount * 4, paint);
+    }
+
+    /**
+     * Returns the number of vertices drawn for the current phase.
+     */
+    int getVertexCount() {
+        return (mSegmentCount + mPartialCount) * 2;
+    }
+}
@@ -17,55 +17,117 @@
 package org.curiouscreature.android.roadtrip;
 
 import android.app.Activity;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.graphics.*;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
 import android.view.*;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.Space;
 import android.widget.Toast;
 
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
 @SuppressWarnings("ConstantConditions")
 public class MainActivity extends Activity {
+    private static final String LOG_TAG = "MainActivity";
+
     private static final boolean ANIMATE_BACKGROUND = false;
 
+    // Number of states loaded ahead of the last row bound in the list
+    private static final int LOOKAHEAD_STATES = 2;
+
+    // Number of saturation levels of the first photo of a row. The filters
+    // are created once and shared, horizontal scrolling allocates nothing
+    private static final int SATURATION_LEVELS = 64;
+    private static ColorMatrixColorFilter[] sSaturationFilters;
+
     private static class State {
         int background;
         int map;
         int photos[];
-        final List<Bitmap> bitmaps = new ArrayList<Bitmap>();
+        // Photos acquired from the cache while the state is bound to a row
+        final Bitmap[] bitmaps;
+        // Display width of the photos, known once decoded
+        final int[] widths;
+        final boolean[] decoding;
+        int pendingPhotos;
+
+        // Saved when the row of the state is recycled
+        boolean revealed;
+        int scrollX;
+
+        Row row;
 
         State(int background, int map, int[] photos) {
             this.background = background;
             this.map = map;
             this.photos = photos;
+            this.bitmaps = new Bitmap[photos.length];
+            this.widths = new int[photos.length];
+            this.decoding = new boolean[photos.length];
         }
     }
 
-    private final State[] mStates = {
-            new State(R.color.az, R.raw.map_az, new int[] {
-                    R.drawable.photo_01_antelope,
-                    R.drawable.photo_09_horseshoe,
-                    R.drawable.photo_10_sky
-            }),
-            new State(R.color.ut, R.raw.map_ut, new int[] {
-                    R.drawable.photo_08_arches,
-                    R.drawable.photo_03_bryce,
-                    R.drawable.photo_04_powell,
-            }),
-            new State(R.color.ca, R.raw.map_ca, new int[] {
-                    R.drawable.photo_07_san_francisco,
-                    R.drawable.photo_02_tahoe,
-                    R.drawable.photo_05_sierra,
-                    R.drawable.photo_06_rockaway
-            }),
-    };
+    /**
+     * Views of a row of the state list, bound to one state at a time.
+     */
+    private static class Row {
+        View view;
+        StateView stateView;
+        TrackingHorizontalScrollView scroller;
+        LinearLayout photos;
+        Space spacer;
+        final List<ImageView> images = new ArrayList<ImageView>();
+        final ColorDrawable background = new ColorDrawable();
+
+        State state;
+
+        // Last values passed to StateView.reveal()
+        boolean visible;
+        int revealOffset;
+    }
+
+    private static final String TRIP_MANIFEST = "trips/roadtrip.trip";
+
+    // States are created from the manifest the first time they are needed
+    private TripManifest mTrip;
+    private final SparseArray<State> mStates = new SparseArray<State>();
+
+    // Shared by successive instances of the activity, photos decoded by
+    // an instance are reused by the next one
+    private static BitmapPool sBitmapPool;
+
+    private PhotoDecoder mPhotoDecoder;
+    private BitmapCache mBitmapCache;
+    private int mPhotoHeight;
+    // States are loaded in scroll order, a state is added to the list once
+    // the states above it are added
+    private int mLoadingStates;
+    private int mLoadedStates;
+
+    private StateListView mStateList;
+    private final List<ImageView> mScrapPhotos = new ArrayList<ImageView>();
+    private int mPeekMargin;
 
     private IntroView mIntroView;
     private Drawable mActionBarDrawable;
@@ -73,12 +135,34 @@ public class MainActivity extends Activity {
     private int mAccentColor;
     private int mAccentColor2;
 
-    private final Rect mTempRect = new Rect();
+    // Rows visible after the last scroll event
+    private int mFirstVisibleRow;
+    private int mLastVisibleRow = -1;
+
+    // Startup timestamps, in uptime milliseconds. The activity is
+    // interactive once the first row can be scrolled to
+    private long mCreateTime;
+    private long mFirstFrameTime;
+    private long mInteractiveTime;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTime = SystemClock.uptimeMillis();
+        RenderMetrics.init(this);
+
+        if (sBitmapPool == null) {
+            ActivityManager am = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+            sBitmapPool = new BitmapPool(am.getMemoryClass() * 1024 * 1024 / 8);
+        }
+        // Photos are decoded at the height of the rows that display them
+        mPhotoHeight = getResources().getDimensionPixelSize(R.dimen.state_height);
+
+        mTrip = openTrip(this, TRIP_MANIFEST);
+        prewarm();
+
         setContentView(R.layout.activity_main);
+        trackFirstFrame();
 
         mActionBarDrawable = getResources().getDrawable(R.drawable.ab_solid);
         mActionBarDrawable.setAlpha(0);
@@ -87,6 +171,10 @@ public class MainActivity extends Activity {
         mAccentColor = getResources().getColor(R.color.accent);
         mAccentColor2 = getResources().getColor(R.color.accent2);
 
+        mPhotoDecoder = new PhotoDecoder(getResources(), sBitmapPool);
+        mBitmapCache = new BitmapCache(BitmapCache.computeMaxBytes(this), sBitmapPool);
+        mPeekMargin = getResources().getDimensionPixelSize(R.dimen.activity_peek_margin);
+
         mIntroView = (IntroView) findViewById(R.id.intro);
         mIntroView.setSvgResource(R.raw.map_usa);
         mIntroView.setOnReadyListener(new IntroView.OnReadyListener() {
@@ -96,6 +184,30 @@ public class MainActivity extends Activity {
             }
         });
 
+        mStateList = (StateListView) findViewById(R.id.container);
+        mStateList.setAdapter(new StateListView.Adapter() {
+            @Override
+            public int getCount() {
+                return mLoadedStates;
+            }
+
+            @Override
+            public View createView(ViewGroup parent) {
+                return createRow(parent);
+            }
+
+            @Override
+            public void bindView(View view, int position) {
+                bindRow((Row) view.getTag(), getState(position));
+                loadStates(position + 1 + LOOKAHEAD_STATES);
+            }
+
+            @Override
+            public void unbindView(View view, int position) {
+                unbindRow((Row) view.getTag());
+            }
+        });
+
         ((TrackingScrollView) findViewById(R.id.scroller)).setOnScrollChangedListener(
                 new TrackingScrollView.OnScrollChangedListener() {
             @Override
@@ -105,6 +217,39 @@ public class MainActivity extends Activity {
         });
     }
 
+    /**
+     * Starts parsing the maps and decoding the photos of the first states
+     * before the views are laid out. The views do not wait for their size
+     * to start this work anymore, they join the loads already in progress
+     * when they need the maps and photos.
+     */
+    private void prewarm() {
+        final MapRegistry registry = MapRegistry.getInstance();
+        registry.prefetch(this, R.raw.map_usa);
+
+        final int count = Math.min(1 + LOOKAHEAD_STATES, getStateCount());
+        for (int position = 0; position < count; position++) {
+            State state = getState(position);
+            registry.prefetch(this, state.map);
+            for (int i = 0; i < state.photos.length; i++) {
+                PhotoDecoder.prefetch(getResources(), state.photos[i], mPhotoHeight, sBitmapPool);
+            }
+        }
+    }
+
+    private void trackFirstFrame() {
+        final ViewTreeObserver observer = getWindow().getDecorView().getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                getWindow().getDecorView().getViewTreeObserver().removeOnPreDrawListener(this);
+                mFirstFrameTime = SystemClock.uptimeMillis();
+                Log.i(LOG_TAG, "Time to first frame: " + (mFirstFrameTime - mCreateTime) + "ms");
+                return true;
+            }
+        });
+    }
+
     private void handleScroll(ViewGroup source, int top) {
         final float actionBarHeight = getActionBar().getHeight();
         final float firstItemHeight = findViewById(R.id.scroller).getHeight() - actionBarHeight;
@@ -119,13 +264,43 @@ public class MainActivity extends Activity {
             changeBackgroundColor(decorView, alpha);
         }
 
-        ViewGroup container = (ViewGroup) source.findViewById(R.id.container);
-        final int count = container.getChildCount();
-        for (int i = 0; i < count; i++) {
-            View item = container.getChildAt(i);
-            View v = item.findViewById(R.id.state);
-            if (v != null && v.getGlobalVisibleRect(mTempRect)) {
-                ((StateView) v).reveal(source, item.getBottom());
+        // The intro and the rows that moved may have left the screen, or come back
+        final AnimationScheduler scheduler = AnimationScheduler.getInstance();
+        scheduler.update(mIntroView);
+
+        // Rows, and their photos, are kept within one screen of the viewport
+        mStateList.setPrefetchDistance(source.getHeight());
+        mStateList.setViewport(top, source.getHeight());
+
+        final int first = mStateList.getFirstVisiblePosition();
+        final int last = mStateList.getLastVisiblePosition();
+
+        // Rows that left the viewport are revealed again when they come back
+        for (int position = mFirstVisibleRow; position <= mLastVisibleRow; position++) {
+            if (position >= first && position <= last) continue;
+            View item = mStateList.getViewForPosition(position);
+            if (item == null) continue;
+            Row row = (Row) item.getTag();
+            row.visible = false;
+            scheduler.update(row.stateView);
+        }
+        mFirstVisibleRow = first;
+        mLastVisibleRow = last;
+
+        final int height = source.getHeight();
+        for (int position = first; position <= last; position++) {
+            View item = mStateList.getViewForPosition(position);
+            if (item == null) continue;
+
+            // Only rows entering the viewport, or whose bottom edge is
+            // below the viewport, need to be revealed again
+            Row row = (Row) item.getTag();
+            int offset = Math.min(0, height - (item.getBottom() - top));
+            if (!row.visible || row.revealOffset != offset) {
+                row.visible = true;
+                row.revealOffset = offset;
+                row.stateView.reveal(source, item.getBottom());
+                scheduler.update(row.stateView);
             }
         }
     }
@@ -169,108 +344,360 @@ public class MainActivity extends Activity {
         }
     }
 
+    /**
+     * Maps the specified trip manifest in memory. Manifests are stored
+     * uncompressed in the APK, if the manifest is compressed it is read
+     * in a buffer instead. Returns null if the manifest cannot be read.
+     */
+    private static TripManifest openTrip(Context context, String name) {
+        AssetFileDescriptor afd = null;
+        FileInputStream in = null;
+        try {
+            afd = context.getAssets().openFd(name);
+            in = afd.createInputStream();
+            ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    afd.getStartOffset(), afd.getLength());
+            return TripManifest.wrap(buffer);
+        } catch (FileNotFoundException e) {
+            return readTrip(context, name);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not read trip manifest " + name, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+            // AssetFileDescriptor is only Closeable since KitKat
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static TripManifest readTrip(Context context, String name) {
+        InputStream in = null;
+        try {
+            in = context.getAssets().open(name, AssetManager.ACCESS_BUFFER);
+            byte[] data = new byte[in.available()];
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) throw new IOException("Truncated trip manifest: " + name);
+                read += count;
+            }
+            return TripManifest.wrap(ByteBuffer.wrap(data));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not read trip manifest " + name, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private int getStateCount() {
+        return mTrip == null ? 0 : mTrip.getStateCount();
+    }
+
+    /**
+     * Returns the state at the specified position in the trip, reading its
+     * record from the manifest the first time.
+     */
+    private State getState(int position) {
+        State state = mStates.get(position);
+        if (state == null) {
+            final Resources resources = getResources();
+            final String packageName = getPackageName();
+
+            int[] photos = new int[mTrip.getPhotoCount(position)];
+            for (int i = 0; i < photos.length; i++) {
+                photos[i] = resources.getIdentifier(mTrip.getPhoto(position, i),
+                        "drawable", packageName);
+            }
+            state = new State(
+                    resources.getIdentifier(mTrip.getBackground(position), "color", packageName),
+                    resources.getIdentifier(mTrip.getMap(position), "raw", packageName),
+                    photos);
+            mStates.put(position, state);
+        }
+        return state;
+    }
+
     private void loadPhotos() {
-        final Resources resources = getResources();
-        new Thread(new Runnable() {
+        loadStates(1 + LOOKAHEAD_STATES);
+    }
+
+    /**
+     * Starts decoding the photos of the states above the specified position.
+     * Decodes are queued in scroll order so the first rows complete first.
+     */
+    private void loadStates(int position) {
+        position = Math.min(position, getStateCount());
+        while (mLoadingStates < position) {
+            State state = getState(mLoadingStates++);
+            state.pendingPhotos = state.photos.length;
+            for (int i = 0; i < state.photos.length; i++) {
+                decodePhoto(state, i);
+            }
+        }
+        addLoadedStates();
+    }
+
+    private void decodePhoto(final State state, final int index) {
+        state.decoding[index] = true;
+        mPhotoDecoder.decode(state.photos[index], mPhotoHeight, new PhotoDecoder.Callback() {
             @Override
-            public void run() {
-                for (State s : mStates) {
-                    for (int resId : s.photos) {
-                        s.bitmaps.add(BitmapFactory.decodeResource(resources, resId));
+            public void onDecoded(int resource, Bitmap bitmap) {
+                state.decoding[index] = false;
+                if (bitmap != null) {
+                    state.widths[index] = bitmap.getWidth();
+                    bitmap = mBitmapCache.put(resource, bitmap);
+                    if (state.row != null && state.bitmaps[index] == null) {
+                        showPhoto(state, index, bitmap);
+                    } else {
+                        mBitmapCache.release(resource);
                     }
                 }
 
-                mIntroView.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        finishLoadingPhotos();
-                    }
-                });
+                if (state.pendingPhotos > 0) {
+                    state.pendingPhotos--;
+                    addLoadedStates();
+                }
             }
-        }, "Photos Loader").start();
+        });
+    }
+
+    /**
+     * Adds the states whose photos are all decoded to the list. States are
+     * added in scroll order: a state is only added after the states above it.
+     */
+    private void addLoadedStates() {
+        final int previous = mLoadedStates;
+        while (mLoadedStates < mLoadingStates && getState(mLoadedStates).pendingPhotos == 0) {
+            mLoadedStates++;
+        }
+        if (mLoadedStates == previous) return;
+
+        if (previous == 0) {
+            // The user can start scrolling as soon as the first row is there
+            mIntroView.stopWaitAnimation();
+            mInteractiveTime = SystemClock.uptimeMillis();
+            Log.i(LOG_TAG, "Time to interactive: " + (mInteractiveTime - mCreateTime) + "ms");
+
+            View scroller = findViewById(R.id.scroller);
+            mStateList.setHeaderHeight(scroller.getHeight());
+            mStateList.setPrefetchDistance(scroller.getHeight());
+            mStateList.setViewport(scroller.getScrollY(), scroller.getHeight());
+        }
+        mStateList.notifyDataSetChanged();
     }
 
-    private void finishLoadingPhotos() {
-        mIntroView.stopWaitAnimation();
+    private View createRow(ViewGroup parent) {
+        final Row row = new Row();
+        row.view = getLayoutInflater().inflate(R.layout.item_state, parent, false);
+        row.view.setTag(row);
+        row.stateView = (StateView) row.view.findViewById(R.id.state);
+        row.photos = (LinearLayout) row.view.findViewById(R.id.sub_container);
+
+        row.spacer = new Space(this);
+        row.spacer.setLayoutParams(new LinearLayout.LayoutParams(
+                parent.getWidth() - mPeekMargin, LinearLayout.LayoutParams.MATCH_PARENT));
+        row.photos.addView(row.spacer);
+
+        row.scroller = (TrackingHorizontalScrollView) row.view.findViewById(R.id.scroller);
+        row.scroller.setOnScrollChangedListener(
+                new TrackingHorizontalScrollView.OnScrollChangedListener() {
+            @Override
+            public void onScrollChanged(TrackingHorizontalScrollView source,
+                    int l, int t, int oldl, int oldt) {
+                if (row.state != null) applyHorizontalScroll(row, l);
+            }
+        });
 
-        LinearLayout container = (LinearLayout) findViewById(R.id.container);
-        LayoutInflater inflater = getLayoutInflater();
+        return row.view;
+    }
 
-        Space spacer = new Space(this);
-        spacer.setLayoutParams(new LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT,
-                findViewById(R.id.scroller).getHeight()));
-        container.addView(spacer);
+    private void bindRow(Row row, State state) {
+        row.state = state;
+        state.row = row;
+
+        row.background.setColor(getResources().getColor(state.background));
+        row.view.setBackground(row.background);
+        row.stateView.setSvgResource(state.map);
+        row.stateView.setRevealed(state.revealed);
+
+        final int count = state.photos.length;
+        while (row.images.size() < count) {
+            ImageView image;
+            if (mScrapPhotos.isEmpty()) {
+                image = (ImageView) getLayoutInflater().inflate(
+                        R.layout.item_photo, row.photos, false);
+            } else {
+                image = mScrapPhotos.remove(mScrapPhotos.size() - 1);
+            }
+            row.images.add(image);
+            row.photos.addView(image);
+        }
+        while (row.images.size() > count) {
+            ImageView image = row.images.remove(row.images.size() - 1);
+            row.photos.removeView(image);
+            image.setColorFilter(null);
+            mScrapPhotos.add(image);
+        }
 
-        for (State s : mStates) {
-            addState(inflater, container, s);
+        for (int i = 0; i < count; i++) {
+            ImageView image = row.images.get(i);
+            // Keep the size of photos evicted from the cache while they are decoded
+            image.getLayoutParams().width = state.widths[i] > 0 ?
+                    state.widths[i] : LinearLayout.LayoutParams.WRAP_CONTENT;
+            image.setImageDrawable(null);
+            image.requestLayout();
         }
+        bindPhotos(state);
+
+        applyHorizontalScroll(row, state.scrollX);
+        row.scroller.setScrollXOnLayout(state.scrollX);
     }
 
-    private void addState(LayoutInflater inflater, LinearLayout container, final State state) {
-        final int margin = getResources().getDimensionPixelSize(R.dimen.activity_peek_margin);
-
-        final View view = inflater.inflate(R.layout.item_state, container, false);
-        final StateView stateView = (StateView) view.findViewById(R.id.state);
-        stateView.setSvgResource(state.map);
-        view.setBackgroundResource(state.background);
-
-        LinearLayout subContainer = (LinearLayout) view.findViewById(R.id.sub_container);
-        Space spacer = new Space(this);
-        spacer.setLayoutParams(new LinearLayout.LayoutParams(
-                container.getWidth() - margin, LinearLayout.LayoutParams.MATCH_PARENT));
-        subContainer.addView(spacer);
-
-        ImageView first = null;
-        for (Bitmap b : state.bitmaps) {
-            ImageView image =
-                    (ImageView) inflater.inflate(R.layout.item_photo, subContainer, false);
-            if (first == null) first = image;
-            image.setImageBitmap(b);
-            subContainer.addView(image);
+    private void unbindRow(Row row) {
+        State state = row.state;
+        state.revealed = row.stateView.isRevealed();
+        state.scrollX = row.scroller.getScrollX();
+        unbindPhotos(state);
+
+        state.row = null;
+        row.state = null;
+        row.visible = false;
+    }
+
+    /**
+     * Displays the photos of a state bound to a row. Photos evicted from the
+     * cache are decoded again.
+     */
+    private void bindPhotos(State state) {
+        for (int i = 0; i < state.photos.length; i++) {
+            if (state.bitmaps[i] != null) continue;
+
+            Bitmap bitmap = mBitmapCache.acquire(state.photos[i]);
+            if (bitmap != null) {
+                showPhoto(state, i, bitmap);
+            } else if (!state.decoding[i]) {
+                decodePhoto(state, i);
+            }
         }
+    }
 
-        ColorMatrix cm = new ColorMatrix();
-        cm.setSaturation(0.0f);
-        first.setTag(cm);
-        first.setColorFilter(new ColorMatrixColorFilter(cm));
+    private void showPhoto(State state, int index, Bitmap bitmap) {
+        state.bitmaps[index] = bitmap;
+        state.row.images.get(index).setImageBitmap(bitmap);
+    }
 
-        final ImageView bw = first;
+    /**
+     * Releases the photos of a state whose row is recycled. They stay in the
+     * cache until it runs out of space.
+     */
+    private void unbindPhotos(State state) {
+        for (int i = 0; i < state.photos.length; i++) {
+            if (state.bitmaps[i] == null) continue;
+
+            state.row.images.get(i).setImageDrawable(null);
+            mBitmapCache.release(state.photos[i]);
+            state.bitmaps[i] = null;
+        }
+    }
 
-        TrackingHorizontalScrollView s =
-                (TrackingHorizontalScrollView) view.findViewById(R.id.scroller);
-        s.setOnScrollChangedListener(new TrackingHorizontalScrollView.OnScrollChangedListener() {
-            @Override
-            public void onScrollChanged(TrackingHorizontalScrollView source,
-                    int l, int t, int oldl, int oldt) {
-                final float width = source.getWidth() - margin;
-                final float alpha = Math.min(width, Math.max(0, l)) / width;
+    private void applyHorizontalScroll(Row row, int scrollX) {
+        final float width = row.scroller.getWidth() - mPeekMargin;
+        final float alpha = width <= 0.0f ? 0.0f : Math.min(width, Math.max(0, scrollX)) / width;
 
-                stateView.setTranslationX(-width / 3.0f * alpha);
-                stateView.setParallax(1.0f - alpha);
+        row.stateView.setTranslationX(-width / 3.0f * alpha);
+        row.stateView.setParallax(1.0f - alpha);
 
-                removeStateOverdraw(view, state, alpha);
+        removeStateOverdraw(row, alpha);
 
-                if (alpha < 1.0f) {
-                    ColorMatrix cm = (ColorMatrix) bw.getTag();
-                    cm.setSaturation(alpha);
-                    bw.setColorFilter(new ColorMatrixColorFilter(cm));
-                } else {
-                    bw.setColorFilter(null);
-                }
+        if (row.images.isEmpty()) return;
+        ImageView bw = row.images.get(0);
+        if (alpha < 1.0f) {
+            // ImageView ignores the filter it already uses
+            bw.setColorFilter(getSaturationFilter(alpha));
+        } else {
+            bw.setColorFilter(null);
+        }
+    }
+
+    private static ColorMatrixColorFilter getSaturationFilter(float saturation) {
+        if (sSaturationFilters == null) {
+            sSaturationFilters = new ColorMatrixColorFilter[SATURATION_LEVELS];
+            ColorMatrix cm = new ColorMatrix();
+            for (int i = 0; i < SATURATION_LEVELS; i++) {
+                cm.setSaturation(i / (SATURATION_LEVELS - 1.0f));
+                sSaturationFilters[i] = new ColorMatrixColorFilter(cm);
             }
-        });
+        }
+        return sSaturationFilters[Math.round(saturation * (SATURATION_LEVELS - 1))];
+    }
 
-        container.addView(view);
+    private void removeStateOverdraw(Row row, float alpha) {
+        if (alpha >= 1.0f && row.view.getBackground() != null) {
+            row.view.setBackground(null);
+            row.stateView.setVisibility(View.INVISIBLE);
+        } else if (alpha < 1.0f && row.view.getBackground() == null) {
+            row.view.setBackground(row.background);
+            row.stateView.setVisibility(View.VISIBLE);
+        }
     }
 
-    private void removeStateOverdraw(View stateView, State state, float alpha) {
-        if (alpha >= 1.0f && stateView.getBackground() != null) {
-            stateView.setBackground(null);
-            stateView.findViewById(R.id.state).setVisibility(View.INVISIBLE);
-        } else if (alpha < 1.0f && stateView.getBackground() == null) {
-            stateView.setBackgroundResource(state.background);
-            stateView.findViewById(R.id.state).setVisibility(View.VISIBLE);
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        mPhotoDecoder.cancel();
+        PhotoDecoder.clearPrefetched();
+        for (int i = 0; i < mStates.size(); i++) {
+            State s = mStates.valueAt(i);
+            if (s.row != null) unbindRow(s.row);
         }
+
+        Log.d(LOG_TAG, mBitmapCache.toString());
+        mBitmapCache.clear();
+    }
+
+    /**
+     * Prints the startup times, the render metrics and the photo cache
+     * statistics. Passing "reset" as an argument resets the metrics once
+     * printed.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+
+        writer.print(prefix);
+        writer.println("Startup: first frame=" + formatStartupTime(mFirstFrameTime) +
+                " interactive=" + formatStartupTime(mInteractiveTime));
+        RenderMetrics.dump(prefix, writer);
+        writer.print(prefix);
+        writer.println("  IntroView layer: " + mIntroView.getLayerDecision());
+        writer.print(prefix);
+        writer.println("Photos: " + mBitmapCache);
+
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            RenderMetrics.resetAll();
+        }
+    }
+
+    private String formatStartupTime(long time) {
+        return time == 0 ? "pending" : (time - mCreateTime) + "ms";
     }
 
     @Override
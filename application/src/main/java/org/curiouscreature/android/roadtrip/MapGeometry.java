@@ -0,0 +1,314 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Geometry of all the paths of a map, in document (viewBox) coordinates.
+ * Each path is stored as an array of verbs and an array of packed absolute
+ * coordinates, which is also the layout of the compiled map files generated
+ * at build time from res/raw/map_*.svg:
+ *
+ * <pre>
+ * int      magic ('RTMP')
+ * int      version
+ * float[4] viewBox (x, y, width, height)
+ * int      path count
+ * for each path:
+ *     int      verb count
+ *     int      coordinate count
+ *     float[]  coordinates
+ *     byte[]   verbs
+ * </pre>
+ *
+ * All values are big endian. This class must not depend on the Android
+ * framework: it is also compiled into the build script (see buildSrc/).
+ */
+public final class MapGeometry {
+    public static final int MAGIC = 0x52544d50;
+    public static final int VERSION = 1;
+
+    public static final byte VERB_MOVE = 0;
+    public static final byte VERB_LINE = 1;
+    public static final byte VERB_QUAD = 2;
+    public static final byte VERB_CUBIC = 3;
+    public static final byte VERB_CLOSE = 4;
+
+    private final float mViewBoxX;
+    private final float mViewBoxY;
+    private final float mViewBoxWidth;
+    private final float mViewBoxHeight;
+
+    private final byte[][] mVerbs;
+    private final float[][] mCoords;
+
+    MapGeometry(float viewBoxX, float viewBoxY, float viewBoxWidth, float viewBoxHeight,
+            byte[][] verbs, float[][] coords) {
+        mViewBoxX = viewBoxX;
+        mViewBoxY = viewBoxY;
+        mViewBoxWidth = viewBoxWidth;
+        mViewBoxHeight = viewBoxHeight;
+        mVerbs = verbs;
+        mCoords = coords;
+    }
+
+    public float getViewBoxX() {
+        return mViewBoxX;
+    }
+
+    public float getViewBoxY() {
+        return mViewBoxY;
+    }
+
+    public float getViewBoxWidth() {
+        return mViewBoxWidth;
+    }
+
+    public float getViewBoxHeight() {
+        return mViewBoxHeight;
+    }
+
+    public int getPathCount() {
+        return mVerbs.length;
+    }
+
+    /**
+     * Returns the verbs of the specified path. The returned array must not be modified.
+     */
+    public byte[] getVerbs(int path) {
+        return mVerbs[path];
+    }
+
+    /**
+     * Returns the coordinates of the specified path. The returned array must not be modified.
+     */
+    public float[] getCoords(int path) {
+        return mCoords[path];
+    }
+
+    /**
+     * Returns the number of coordinates (not points) consumed by the specified verb.
+     */
+    public static int coordCount(byte verb) {
+        switch (verb) {
+            case VERB_MOVE:
+            case VERB_LINE:
+                return 2;
+            case VERB_QUAD:
+                return 4;
+            case VERB_CUBIC:
+                return 6;
+            case VERB_CLOSE:
+                return 0;
+        }
+        throw new IllegalArgumentException("Unknown verb: " + verb);
+    }
+
+    /**
+     * Reads a map written by {@link #write(DataOutputStream)}, which must
+     * fill the remaining content of the buffer. The lengths and verbs are
+     * validated: a corrupt or truncated map throws an IOException rather
+     * than a runtime exception.
+     */
+    public static MapGeometry read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a compiled map");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported compiled map version: " + version);
+        }
+
+        require(buffer, 5 * 4);
+        float x = buffer.getFloat();
+        float y = buffer.getFloat();
+        float width = buffer.getFloat();
+        float height = buffer.getFloat();
+
+        final int count = buffer.getInt();
+        // Every path starts with its two lengths
+        if (count < 0 || count > buffer.remaining() / 8) {
+            throw new IOException("Invalid path count in compiled map: " + count);
+        }
+        byte[][] verbs = new byte[count][];
+        float[][] coords = new float[count][];
+
+        for (int i = 0; i < count; i++) {
+            require(buffer, 2 * 4);
+            final int verbCount = buffer.getInt();
+            final int coordCount = buffer.getInt();
+            if (verbCount < 0 || coordCount < 0) {
+                throw new IOException("Invalid lengths in compiled map: " + verbCount +
+                        " verbs, " + coordCount + " coordinates");
+            }
+            require(buffer, coordCount * 4L + verbCount);
+
+            verbs[i] = new byte[verbCount];
+            coords[i] = new float[coordCount];
+
+            buffer.asFloatBuffer().get(coords[i]);
+            buffer.position(buffer.position() + coords[i].length * 4);
+            buffer.get(verbs[i]);
+            checkVerbs(verbs[i], coordCount);
+        }
+        if (buffer.hasRemaining()) {
+            throw new IOException("Unexpected data after the last path of the compiled map");
+        }
+
+        return new MapGeometry(x, y, width, height, verbs, coords);
+    }
+
+    private static void require(ByteBuffer buffer, long byteCount) throws IOException {
+        if (buffer.remaining() < byteCount) {
+            throw new IOException("Truncated compiled map");
+        }
+    }
+
+    private static void checkVerbs(byte[] verbs, int coordCount) throws IOException {
+        int expected = 0;
+        for (byte verb : verbs) {
+            try {
+                expected += coordCount(verb);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid compiled map: " + e.getMessage());
+            }
+        }
+        if (expected != coordCount) {
+            throw new IOException("Invalid compiled map: " + verbs.length + " verbs use " +
+                    expected + " coordinates, found " + coordCount);
+        }
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        out.writeFloat(mViewBoxX);
+        out.writeFloat(mViewBoxY);
+        out.writeFloat(mViewBoxWidth);
+        out.writeFloat(mViewBoxHeight);
+
+        out.writeInt(mVerbs.length);
+        for (int i = 0; i < mVerbs.length; i++) {
+            out.writeInt(mVerbs[i].length);
+            out.writeInt(mCoords[i].length);
+            for (float f : mCoords[i]) {
+                out.writeFloat(f);
+            }
+            out.write(mVerbs[i]);
+        }
+    }
+
+    /**
+     * Collects paths from an {@link SvgPathParser}, one path per element.
+     */
+    public static final class Builder implements SvgPathParser.PathSink {
+        private final List<byte[]> mVerbs = new ArrayList<byte[]>();
+        private final List<float[]> mCoords = new ArrayList<float[]>();
+
+        private float mViewBoxX;
+        private float mViewBoxY;
+        private float mViewBoxWidth;
+        private float mViewBoxHeight;
+
+        private byte[] mPathVerbs = new byte[64];
+        private float[] mPathCoords = new float[256];
+        private int mVerbCount;
+        private int mCoordCount;
+
+        public Builder setViewBox(float x, float y, float width, float height) {
+            mViewBoxX = x;
+            mViewBoxY = y;
+            mViewBoxWidth = width;
+            mViewBoxHeight = height;
+            return this;
+        }
+
+        /**
+         * Terminates the current path. Empty paths are discarded.
+         */
+        public Builder endPath() {
+            if (mVerbCount > 0) {
+                mVerbs.add(Arrays.copyOf(mPathVerbs, mVerbCount));
+                mCoords.add(Arrays.copyOf(mPathCoords, mCoordCount));
+            }
+            mVerbCount = 0;
+            mCoordCount = 0;
+            return this;
+        }
+
+        public MapGeometry build() {
+            endPath();
+            return new MapGeometry(mViewBoxX, mViewBoxY, mViewBoxWidth, mViewBoxHeight,
+                    mVerbs.toArray(new byte[mVerbs.size()][]),
+                    mCoords.toArray(new float[mCoords.size()][]));
+        }
+
+        @Override
+        public void moveTo(float x, float y) {
+            verb(VERB_MOVE);
+            coords(x, y);
+        }
+
+        @Override
+        public void lineTo(float x, float y) {
+            verb(VERB_LINE);
+            coords(x, y);
+        }
+
+        @Override
+        public void quadTo(float x1, float y1, float x2, float y2) {
+            verb(VERB_QUAD);
+            coords(x1, y1);
+            coords(x2, y2);
+        }
+
+        @Override
+        public void cubicTo(float x1, float y1, float x2, float y2, float x3, float y3) {
+            verb(VERB_CUBIC);
+            coords(x1, y1);
+            coords(x2, y2);
+            coords(x3, y3);
+        }
+
+        @Override
+        public void close() {
+            verb(VERB_CLOSE);
+        }
+
+        private void verb(byte verb) {
+            if (mVerbCount == mPathVerbs.length) {
+                mPathVerbs = Arrays.copyOf(mPathVerbs, mVerbCount * 2);
+            }
+            mPathVerbs[mVerbCount++] = verb;
+        }
+
+        private void coords(float x, float y) {
+            if (mCoordCount + 2 > mPathCoords.length) {
+                mPathCoords = Arrays.copyOf(mPathCoords, mPathCoords.length * 2);
+            }
+            mPathCoords[mCoordCount++] = x;
+            mPathCoords[mCoordCount++] = y;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+/**
+ * Levels of detail of a map, shared by all the views displaying it. Each
+ * level holds the paths of the map flattened and simplified in document
+ * coordinates, with a tolerance that doubles from one level to the next.
+ * A view picks the coarsest level whose tolerance, once scaled to its
+ * viewport, stays under the tolerance of the display: small views draw
+ * fewer points, and a new viewport only requires transforming the points
+ * of a level. Levels are built the first time they are requested.
+ *
+ * This class must not depend on the Android framework: it is also compiled
+ * into the benchmarks (see benchmarks/).
+ */
+public final class MapLevels {
+    // Tolerances, in document units, range from 2^MIN_LEVEL to 2^MAX_LEVEL
+    public static final int MIN_LEVEL = -7;
+    public static final int MAX_LEVEL = 2;
+
+    // Maximum distance, in dips, between the drawn paths and the curves of the
+    // map. Denser displays can draw fewer points for the same visual result
+    public static final float TOLERANCE_DIP = 0.25f;
+
+    public final MapGeometry geometry;
+    private final Polyline[][] mLevels = new Polyline[MAX_LEVEL - MIN_LEVEL + 1][];
+
+    public MapLevels(MapGeometry geometry) {
+        this.geometry = geometry;
+    }
+
+    /**
+     * Returns the coarsest level whose tolerance is less than or equal to
+     * the specified tolerance, in document units. The finest level is
+     * returned if the tolerance is below all the levels.
+     */
+    public static int getLevel(float tolerance) {
+        int level = (int) Math.floor(Math.log(tolerance) / Math.log(2.0));
+        return Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level));
+    }
+
+    /**
+     * Returns the maximum distance, in document units, between the paths of
+     * the specified level and the curves of the map.
+     */
+    public static float getTolerance(int level) {
+        return (float) Math.pow(2.0, level);
+    }
+
+    /**
+     * Returns the paths of the specified level, in document coordinates.
+     * Building a level blocks: the first request for a level must not be
+     * made from the UI thread. The polylines must not be modified.
+     */
+    public synchronized Polyline[] getPaths(int level) {
+        Polyline[] paths = mLevels[level - MIN_LEVEL];
+        if (paths == null) {
+            // Half of the tolerance goes to flattening, half to simplification
+            final float tolerance = getTolerance(level) / 2.0f;
+
+            final int count = geometry.getPathCount();
+            paths = new Polyline[count];
+            for (int i = 0; i < count; i++) {
+                paths[i] = Polyline.flatten(geometry.getVerbs(i), geometry.getCoords(i),
+                        1.0f, 0.0f, 0.0f, tolerance).simplify(tolerance);
+            }
+            mLevels[level - MIN_LEVEL] = paths;
+        }
+        return paths;
+    }
+}
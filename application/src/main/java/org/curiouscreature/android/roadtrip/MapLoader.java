@@ -0,0 +1,210 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the paths of a map for a given viewport on a small pool of background
+ * threads shared by all the views. Each view owns a MapLoader: requesting a new
+ * load supersedes the previous request, which is dropped from the queue if it
+ * has not started yet and whose result is discarded otherwise. Results are
+ * delivered on the UI thread, which never waits for a load to complete.
+ */
+final class MapLoader {
+    /**
+     * Priority of visible views, loaded first.
+     */
+    static final int PRIORITY_HIGH = 0;
+    /**
+     * Priority of views that are not visible yet.
+     */
+    static final int PRIORITY_LOW = 1;
+
+    private static final int THREAD_COUNT = 2;
+    private static final int KEEP_ALIVE_SECONDS = 5;
+
+    private static final AtomicLong sSequence = new AtomicLong();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static final ThreadPoolExecutor sExecutor;
+
+    static {
+        sExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        // Each task sets the priority of the thread it runs on
+                        return new Thread(r, "SVG Loader #" + mCount.incrementAndGet());
+                    }
+                });
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    interface Callback {
+        /**
+         * Invoked on a background thread to load the paths for the specified viewport.
+         */
+        SvgHelper.PathSet onLoad(int width, int height);
+
+        /**
+         * Invoked on the UI thread with the result of the most recent request.
+         */
+        void onLoaded(SvgHelper.PathSet pathSet);
+
+        /**
+         * Invoked on the UI thread when a request was superseded or cancelled
+         * after {@link #onLoad(int, int)} was invoked, to release what it
+         * acquired if needed.
+         */
+        void onCancelled();
+    }
+
+    private final Callback mCallback;
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private volatile int mPriority;
+    private Job mPending;
+
+    MapLoader(int priority, Callback callback) {
+        mPriority = priority;
+        mCallback = callback;
+    }
+
+    /**
+     * Changes the priority of subsequent requests.
+     */
+    void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * Loads the paths for the specified viewport, superseding any previous request.
+     * Must be invoked from the UI thread.
+     */
+    void load(int width, int height) {
+        cancel();
+        mPending = new Job(mGeneration.get(), mPriority, width, height);
+        sExecutor.execute(mPending);
+    }
+
+    /**
+     * Cancels the current request, if any. Must be invoked from the UI thread.
+     *
+     * @return True if a request was cancelled
+     */
+    boolean cancel() {
+        mGeneration.incrementAndGet();
+        if (mPending == null) return false;
+        sExecutor.remove(mPending);
+        mPending = null;
+        return true;
+    }
+
+    /**
+     * Runs the specified task on the loader threads, ordered with the
+     * requests of the views by priority. Used for work that is not tied
+     * to a view, such as prefetching a map.
+     */
+    static void execute(int priority, final Runnable runnable) {
+        sExecutor.execute(new Task(priority) {
+            @Override
+            void runTask() {
+                runnable.run();
+            }
+        });
+    }
+
+    private boolean isCurrent(int generation) {
+        return mGeneration.get() == generation;
+    }
+
+    private static abstract class Task implements Runnable, Comparable<Task> {
+        private final int mTaskPriority;
+        private final long mSequence;
+
+        Task(int priority) {
+            mTaskPriority = priority;
+            mSequence = sSequence.getAndIncrement();
+        }
+
+        /**
+         * Runs the task at the thread priority matching its priority. High
+         * priority tasks load the maps of visible views and run at the
+         * default priority, other tasks in the background.
+         */
+        @Override
+        public final void run() {
+            Process.setThreadPriority(mTaskPriority == PRIORITY_HIGH ?
+                    Process.THREAD_PRIORITY_DEFAULT : Process.THREAD_PRIORITY_BACKGROUND);
+            runTask();
+        }
+
+        abstract void runTask();
+
+        @Override
+        public int compareTo(Task other) {
+            if (mTaskPriority != other.mTaskPriority) {
+                return mTaskPriority < other.mTaskPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final class Job extends Task {
+        private final int mJobGeneration;
+        private final int mWidth;
+        private final int mHeight;
+
+        Job(int generation, int priority, int width, int height) {
+            super(priority);
+            mJobGeneration = generation;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        void runTask() {
+            if (!isCurrent(mJobGeneration)) return;
+
+            final SvgHelper.PathSet pathSet = mCallback.onLoad(mWidth, mHeight);
+
+            sHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCurrent(mJobGeneration)) {
+                        mCallback.onCancelled();
+                        return;
+                    }
+                    mPending = null;
+                    mCallback.onLoaded(pathSet);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.lang.ref.SoftReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process-wide registry of loaded maps, shared by all the views displaying them
+ * along with their levels of detail.
+ *
+ * Maps are reference counted: a map stays in memory while it is acquired by at
+ * least one view, and is then only softly referenced until the system needs the
+ * memory back. Concurrent requests for a map that is being loaded wait for the
+ * load in progress instead of loading the map again.
+ */
+final class MapRegistry {
+    private static final String LOG_TAG = "MapRegistry";
+
+    private static final MapRegistry sInstance = new MapRegistry();
+
+    private final SparseArray<Entry> mEntries = new SparseArray<Entry>();
+
+    private static final class Entry {
+        int refCount;
+        MapLevels levels;
+        SoftReference<MapLevels> softLevels;
+        FutureTask<MapLevels> pending;
+    }
+
+    private MapRegistry() {
+    }
+
+    static MapRegistry getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts loading the specified map on the loader threads, after the maps
+     * of the visible views, if it is not loaded or being loaded already. The map is not acquired: a later call
+     * to {@link #acquire(Context, int)} waits for this load instead of
+     * starting a new one. Must be invoked from the UI thread.
+     */
+    void prefetch(Context context, int resource) {
+        final FutureTask<MapLevels> task;
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(resource);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(resource, entry);
+            }
+            if (entry.levels != null || entry.pending != null) return;
+            if (entry.softLevels != null && entry.softLevels.get() != null) return;
+
+            task = createLoadTask(context.getApplicationContext(), resource, entry);
+            entry.pending = task;
+        }
+        MapLoader.execute(MapLoader.PRIORITY_LOW, task);
+    }
+
+    /**
+     * Returns the specified map, loading it if needed. This method blocks until
+     * the map is loaded and must not be invoked from the UI thread. Every
+     * successful call must be balanced by a call to {@link #release(int)}.
+     *
+     * @return The map, or null if it could not be loaded
+     */
+    MapLevels acquire(Context context, final int resource) {
+        final Context appContext = context.getApplicationContext();
+
+        final Entry entry;
+        final FutureTask<MapLevels> task;
+
+        synchronized (mEntries) {
+            Entry e = mEntries.get(resource);
+            if (e == null) {
+                e = new Entry();
+                mEntries.put(resource, e);
+            }
+            entry = e;
+            entry.refCount++;
+
+            if (entry.levels == null && entry.softLevels != null) {
+                entry.levels = entry.softLevels.get();
+            }
+            if (entry.levels != null) return entry.levels;
+
+            if (entry.pending == null) {
+                entry.pending = createLoadTask(appContext, resource, entry);
+            }
+            task = entry.pending;
+        }
+
+        // Runs the load on this thread unless it already started, on another
+        // thread for a concurrent request or in the background for a prefetch.
+        // In that case, wait for it
+        task.run();
+
+        MapLevels levels = null;
+        try {
+            levels = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Could not load map", e.getCause());
+        }
+
+        synchronized (mEntries) {
+            if (levels == null) {
+                entry.refCount--;
+            } else if (entry.refCount > 0) {
+                entry.levels = levels;
+            }
+        }
+
+        return levels;
+    }
+
+    /**
+     * Creates the task that loads a map for the specified entry. The task
+     * stops being pending once the load completes, and only then: a thread
+     * interrupted while waiting for the load must not let the next request
+     * start a second load.
+     */
+    private FutureTask<MapLevels> createLoadTask(final Context context, final int resource,
+            final Entry entry) {
+        return new FutureTask<MapLevels>(new Callable<MapLevels>() {
+            @Override
+            public MapLevels call() throws Exception {
+                MapGeometry geometry = SvgHelper.loadGeometry(context, resource);
+                return geometry == null ? null : new MapLevels(geometry);
+            }
+        }) {
+            @Override
+            protected void done() {
+                MapLevels levels = null;
+                if (!isCancelled()) {
+                    try {
+                        levels = get();
+                    } catch (InterruptedException e) {
+                        // The task is done, get() does not wait
+                    } catch (ExecutionException e) {
+                        // Reported by acquire()
+                    }
+                }
+
+                synchronized (mEntries) {
+                    if (entry.pending == this) {
+                        entry.pending = null;
+                        // A prefetched map nobody acquired yet is kept softly
+                        if (levels != null) entry.softLevels = new SoftReference<MapLevels>(levels);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Releases a map previously returned by {@link #acquire(Context, int)}.
+     * When a map is not used anymore it can be reclaimed by the garbage collector.
+     */
+    void release(int resource) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(resource);
+            if (entry == null || entry.refCount <= 0) {
+                throw new IllegalStateException("Map released more times than acquired");
+            }
+            if (--entry.refCount == 0) {
+                entry.levels = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes photos on a small pool of background threads, directly at the size
+ * they are displayed at. The bounds of each photo are read first to pick the
+ * largest power of two subsampling that does not go below the target height,
+ * the remaining scale factor is applied by the decoder itself. Decoded
+ * bitmaps are mutable and can be given back to the bitmap pool once they are
+ * not displayed anymore, to be reused by subsequent decodes.
+ *
+ * Photos can also be prefetched, before any view needs them. The first
+ * request for a prefetched photo waits for the decode already in progress.
+ * A request for another height cancels the prefetch; if it already started,
+ * its result is used when it was not scaled, or given back to the pool.
+ */
+final class PhotoDecoder {
+    private static final String LOG_TAG = "PhotoDecoder";
+
+    private static final int THREAD_COUNT =
+            Math.max(2, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int KEEP_ALIVE_SECONDS = 5;
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static final ThreadPoolExecutor sExecutor;
+
+    static {
+        sExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "Photo Decoder #" + mCount.incrementAndGet());
+                    }
+                });
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // Prefetched photos not claimed yet, only accessed from the UI thread
+    private static final SparseArray<Prefetch> sPrefetched = new SparseArray<Prefetch>();
+
+    private static final class Prefetch {
+        final FutureTask<Bitmap> task;
+        final int targetHeight;
+
+        Prefetch(FutureTask<Bitmap> task, int targetHeight) {
+            this.task = task;
+            this.targetHeight = targetHeight;
+        }
+    }
+
+    interface Callback {
+        /**
+         * Invoked on the UI thread once a photo is decoded. The bitmap is
+         * null if the photo could not be decoded.
+         */
+        void onDecoded(int resource, Bitmap bitmap);
+    }
+
+    private final Resources mResources;
+    private final BitmapPool mPool;
+    private final List<Future<?>> mPending = new ArrayList<Future<?>>();
+    private volatile boolean mCancelled;
+
+    PhotoDecoder(Resources resources, BitmapPool pool) {
+        mResources = resources;
+        mPool = pool;
+    }
+
+    /**
+     * Decodes the specified photo so that its height matches the target height,
+     * or is smaller if the photo is smaller. Must be invoked from the UI thread.
+     */
+    void decode(final int resource, final int targetHeight, final Callback callback) {
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            if (mPending.get(i).isDone()) mPending.remove(i);
+        }
+
+        Prefetch prefetch = sPrefetched.get(resource);
+        sPrefetched.remove(resource);
+        final boolean matches = prefetch != null && prefetch.targetHeight == targetHeight;
+        final FutureTask<Bitmap> prefetched = matches ? prefetch.task : null;
+        // A prefetch for another height that already started is reused or pooled
+        final Prefetch stale = prefetch != null && !matches &&
+                !prefetch.task.cancel(false) && !prefetch.task.isCancelled() ? prefetch : null;
+        mPending.add(sExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap reused = null;
+                if (stale != null) {
+                    reused = get(stale.task);
+                    if (reused != null && !canReuse(reused, stale.targetHeight, targetHeight)) {
+                        mPool.put(reused);
+                        reused = null;
+                    }
+                }
+                if (mCancelled) {
+                    mPool.put(reused);
+                    return;
+                }
+
+                final Bitmap bitmap;
+                if (reused != null) {
+                    bitmap = reused;
+                } else if (prefetched != null) {
+                    // Decodes the photo here if the prefetch did not start yet
+                    prefetched.run();
+                    bitmap = get(prefetched);
+                } else {
+                    // May reuse the bitmap of the prefetch, given back to the pool
+                    bitmap = decode(mResources, resource, targetHeight, mPool);
+                }
+                sHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCancelled) {
+                            mPool.put(bitmap);
+                        } else {
+                            callback.onDecoded(resource, bitmap);
+                        }
+                    }
+                });
+            }
+        }));
+    }
+
+    /**
+     * Starts decoding the specified photo before it is requested. The next
+     * call to {@link #decode(int, int, Callback)} for this photo and height,
+     * from any decoder, receives the prefetched bitmap. Must be invoked from
+     * the UI thread.
+     */
+    static void prefetch(final Resources resources, final int resource, final int targetHeight,
+            final BitmapPool pool) {
+        if (sPrefetched.get(resource) != null) return;
+
+        FutureTask<Bitmap> task = new FutureTask<Bitmap>(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws Exception {
+                return decode(resources, resource, targetHeight, pool);
+            }
+        });
+        sPrefetched.put(resource, new Prefetch(task, targetHeight));
+        sExecutor.execute(task);
+    }
+
+    /**
+     * Indicates whether a photo decoded for a target height can be used for
+     * another target height. A photo shorter than its target height was not
+     * scaled: it is also the result for any target height at least as tall.
+     */
+    private static boolean canReuse(Bitmap bitmap, int decodedHeight, int targetHeight) {
+        final int height = bitmap.getHeight();
+        return height < decodedHeight && height <= targetHeight;
+    }
+
+    private static Bitmap get(Future<Bitmap> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(LOG_TAG, "Could not decode prefetched photo", e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * Cancels all the pending decodes. Photos decoded after this call are
+     * given back to the pool instead of being delivered. Must be invoked
+     * from the UI thread.
+     */
+    void cancel() {
+        mCancelled = true;
+        for (Future<?> future : mPending) {
+            future.cancel(false);
+        }
+        mPending.clear();
+        sExecutor.purge();
+    }
+
+    /**
+     * Cancels the prefetches that were not claimed by a decode and recycles
+     * the photos they already decoded. Must be invoked from the UI thread.
+     */
+    static void clearPrefetched() {
+        for (int i = 0; i < sPrefetched.size(); i++) {
+            FutureTask<Bitmap> task = sPrefetched.valueAt(i).task;
+            // A decode in progress finishes but its result is dropped
+            if (!task.cancel(false) && !task.isCancelled()) {
+                Bitmap bitmap = get(task);
+                if (bitmap != null) bitmap.recycle();
+            }
+        }
+        sPrefetched.clear();
+        sExecutor.purge();
+    }
+
+    /**
+     * Decodes the specified photo on the calling thread.
+     *
+     * @see #decode(int, int, Callback)
+     */
+    static Bitmap decode(Resources resources, int resource, int targetHeight, BitmapPool pool) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(resources, resource, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            Log.w(LOG_TAG, "Could not read the bounds of photo " + resource);
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (opts.outHeight / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+
+        // Upper bounds of the size of the decoded bitmap, used to find a
+        // bitmap to reuse. Decoders round the subsampled size differently
+        int width = (opts.outWidth + sampleSize - 1) / sampleSize;
+        int height = (opts.outHeight + sampleSize - 1) / sampleSize;
+
+        boolean scaled = height > targetHeight;
+        if (scaled) {
+            // The decoder scales by inTargetDensity / inDensity
+            opts.inScaled = true;
+            opts.inDensity = height;
+            opts.inTargetDensity = targetHeight;
+            width = (int) Math.ceil(width * targetHeight / (float) height);
+            height = targetHeight;
+        }
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize;
+        opts.inMutable = true;
+        if (BitmapPool.canReuseScaled() || (sampleSize == 1 && !scaled)) {
+            opts.inBitmap = pool.get(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        Bitmap bitmap;
+        try {
+            try {
+                bitmap = BitmapFactory.decodeResource(resources, resource, opts);
+            } catch (IllegalArgumentException e) {
+                // The decoder refused the bitmap we tried to reuse
+                if (opts.inBitmap == null) throw e;
+                opts.inBitmap.recycle();
+                opts.inBitmap = null;
+                bitmap = BitmapFactory.decodeResource(resources, resource, opts);
+            }
+        } catch (OutOfMemoryError e) {
+            Log.w(LOG_TAG, "Not enough memory to decode photo " + resource, e);
+            return null;
+        }
+
+        // The photos come from drawable-nodpi and are already decoded
+        // at their display size, the drawable must not scale them again
+        if (bitmap != null) bitmap.setDensity(Bitmap.DENSITY_NONE);
+        return bitmap;
+    }
+}
@@ -0,0 +1,329 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import java.util.Arrays;
+
+/**
+ * A path flattened into line segments, with the cumulative arc length at
+ * each point. Finding the point at a given distance along the path is a
+ * binary search, which makes extracting the beginning of a path cheap.
+ *
+ * Points are stored as packed (x, y) pairs. A path can have several
+ * contours: contours[i] is the index of the first point of contour i.
+ * Moving from one contour to the next does not add to the length.
+ *
+ * This class must not depend on the Android framework.
+ */
+public final class Polyline {
+    public final float[] points;
+    public final float[] lengths;
+    public final int[] contours;
+    public final int pointCount;
+    public final float length;
+
+    Polyline(float[] points, float[] lengths, int[] contours, int pointCount) {
+        this.points = points;
+        this.lengths = lengths;
+        this.contours = contours;
+        this.pointCount = pointCount;
+        this.length = pointCount > 0 ? lengths[pointCount - 1] : 0.0f;
+    }
+
+    /**
+     * Returns the index of the last point whose distance along the path is
+     * less than or equal to the specified distance.
+     */
+    public int indexOf(float distance) {
+        int low = 0;
+        int high = pointCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (lengths[mid] <= distance) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns true if the specified point starts a new contour.
+     */
+    public boolean isContourStart(int index) {
+        return Arrays.binarySearch(contours, index) >= 0;
+    }
+
+    /**
+     * Returns the number of bytes used by the arrays of this polyline.
+     */
+    public int getByteCount() {
+        return (points.length + lengths.length + contours.length) * 4;
+    }
+
+    /**
+     * Returns a copy of this polyline whose points are replaced by the
+     * specified points, mapped by a uniform scale. The lengths are scaled
+     * accordingly instead of being measured again.
+     */
+    public Polyline scaled(float[] mappedPoints, float scale) {
+        float[] newLengths = new float[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            newLengths[i] = lengths[i] * scale;
+        }
+        return new Polyline(mappedPoints, newLengths, contours, pointCount);
+    }
+
+    /**
+     * Returns a simplified copy of this polyline, or this polyline if no point
+     * can be removed. Points are removed with the Douglas-Peucker algorithm
+     * so that the distance between the removed points and the simplified
+     * segments stays under the specified tolerance. The first and last points
+     * of each contour are always kept, and the lengths are measured again.
+     */
+    public Polyline simplify(float tolerance) {
+        if (pointCount < 3) return this;
+
+        final float toleranceSquared = tolerance * tolerance;
+        final boolean[] keep = new boolean[pointCount];
+        int[] stack = new int[32];
+
+        for (int c = 0; c < contours.length; c++) {
+            final int first = contours[c];
+            final int last = (c + 1 < contours.length ? contours[c + 1] : pointCount) - 1;
+            keep[first] = true;
+            keep[last] = true;
+
+            // Ranges left to simplify, as (start, end) pairs
+            int top = 0;
+            stack[top++] = first;
+            stack[top++] = last;
+            while (top > 0) {
+                final int end = stack[--top];
+                final int start = stack[--top];
+
+                float maxDistance = 0.0f;
+                int index = -1;
+                for (int i = start + 1; i < end; i++) {
+                    float distance = distanceSquared(i, start, end);
+                    if (distance > maxDistance) {
+                        maxDistance = distance;
+                        index = i;
+                    }
+                }
+
+                if (index != -1 && maxDistance > toleranceSquared) {
+                    keep[index] = true;
+                    if (top + 4 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                    stack[top++] = start;
+                    stack[top++] = index;
+                    stack[top++] = index;
+                    stack[top++] = end;
+                }
+            }
+        }
+
+        int keptCount = 0;
+        for (boolean kept : keep) {
+            if (kept) keptCount++;
+        }
+        if (keptCount == pointCount) return this;
+
+        Builder builder = new Builder(keptCount * 2);
+        int contour = 0;
+        for (int i = 0; i < pointCount; i++) {
+            if (contour < contours.length && contours[contour] == i) {
+                builder.moveTo(points[i * 2], points[i * 2 + 1]);
+                contour++;
+            } else if (keep[i]) {
+                builder.lineTo(points[i * 2], points[i * 2 + 1]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the squared distance between a point and the segment between
+     * two other points.
+     */
+    private float distanceSquared(int point, int start, int end) {
+        final float x = points[point * 2];
+        final float y = points[point * 2 + 1];
+        final float x1 = points[start * 2];
+        final float y1 = points[start * 2 + 1];
+        final float dx = points[end * 2] - x1;
+        final float dy = points[end * 2 + 1] - y1;
+
+        float t = 0.0f;
+        final float lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared > 0.0f) {
+            t = Math.max(0.0f, Math.min(1.0f, ((x - x1) * dx + (y - y1) * dy) / lengthSquared));
+        }
+
+        final float ex = x1 + dx * t - x;
+        final float ey = y1 + dy * t - y;
+        return ex * ex + ey * ey;
+    }
+
+    /**
+     * Flattens a path made of the verbs and coordinates described in
+     * {@link MapGeometry}. Coordinates are first transformed by the specified
+     * scale and translation. Curves are subdivided so that the distance
+     * between the curves and the segments stays under the specified tolerance,
+     * expressed in transformed units.
+     */
+    public static Polyline flatten(byte[] verbs, float[] coords,
+            float scale, float dx, float dy, float tolerance) {
+        Builder builder = new Builder(coords.length);
+
+        float x = 0.0f;
+        float y = 0.0f;
+        float startX = 0.0f;
+        float startY = 0.0f;
+
+        int j = 0;
+        for (byte verb : verbs) {
+            switch (verb) {
+                case MapGeometry.VERB_MOVE:
+                    x = startX = coords[j] * scale + dx;
+                    y = startY = coords[j + 1] * scale + dy;
+                    builder.moveTo(x, y);
+                    break;
+                case MapGeometry.VERB_LINE:
+                    x = coords[j] * scale + dx;
+                    y = coords[j + 1] * scale + dy;
+                    builder.lineTo(x, y);
+                    break;
+                case MapGeometry.VERB_QUAD: {
+                    float x1 = coords[j] * scale + dx;
+                    float y1 = coords[j + 1] * scale + dy;
+                    float x2 = coords[j + 2] * scale + dx;
+                    float y2 = coords[j + 3] * scale + dy;
+
+                    float ddx = x - 2.0f * x1 + x2;
+                    float ddy = y - 2.0f * y1 + y2;
+                    int n = segmentCount(0.25f * (float) Math.hypot(ddx, ddy), tolerance);
+
+                    for (int i = 1; i <= n; i++) {
+                        float t = i / (float) n;
+                        float u = 1.0f - t;
+                        builder.lineTo(
+                                u * u * x + 2.0f * u * t * x1 + t * t * x2,
+                                u * u * y + 2.0f * u * t * y1 + t * t * y2);
+                    }
+                    x = x2;
+                    y = y2;
+                    break;
+                }
+                case MapGeometry.VERB_CUBIC: {
+                    float x1 = coords[j] * scale + dx;
+                    float y1 = coords[j + 1] * scale + dy;
+                    float x2 = coords[j + 2] * scale + dx;
+                    float y2 = coords[j + 3] * scale + dy;
+                    float x3 = coords[j + 4] * scale + dx;
+                    float y3 = coords[j + 5] * scale + dy;
+
+                    float dd = Math.max(
+                            (float) Math.hypot(x - 2.0f * x1 + x2, y - 2.0f * y1 + y2),
+                            (float) Math.hypot(x1 - 2.0f * x2 + x3, y1 - 2.0f * y2 + y3));
+                    int n = segmentCount(0.75f * dd, tolerance);
+
+                    for (int i = 1; i <= n; i++) {
+                        float t = i / (float) n;
+                        float u = 1.0f - t;
+                        float a = u * u * u;
+                        float b = 3.0f * u * u * t;
+                        float c = 3.0f * u * t * t;
+                        float d = t * t * t;
+                        builder.lineTo(
+                                a * x + b * x1 + c * x2 + d * x3,
+                                a * y + b * y1 + c * y2 + d * y3);
+                    }
+                    x = x3;
+                    y = y3;
+                    break;
+                }
+                case MapGeometry.VERB_CLOSE:
+                    builder.lineTo(startX, startY);
+                    x = startX;
+                    y = startY;
+                    break;
+            }
+            j += MapGeometry.coordCount(verb);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Number of segments needed to approximate a curve (Wang's formula).
+     */
+    private static int segmentCount(float deviation, float tolerance) {
+        return Math.max(1, (int) Math.ceil(Math.sqrt(deviation / tolerance)));
+    }
+
+    private static final class Builder {
+        private float[] mPoints;
+        private float[] mLengths;
+        private int[] mContours = new int[4];
+        private int mPointCount;
+        private int mContourCount;
+
+        Builder(int capacity) {
+            mPoints = new float[Math.max(capacity, 8)];
+            mLengths = new float[mPoints.length / 2];
+        }
+
+        void moveTo(float x, float y) {
+            if (mContourCount == mContours.length) {
+                mContours = Arrays.copyOf(mContours, mContourCount * 2);
+            }
+            mContours[mContourCount++] = mPointCount;
+            add(x, y, mPointCount > 0 ? mLengths[mPointCount - 1] : 0.0f);
+        }
+
+        void lineTo(float x, float y) {
+            if (mPointCount == 0) {
+                moveTo(x, y);
+                return;
+            }
+            final int last = mPointCount - 1;
+            float segment = (float) Math.hypot(x - mPoints[last * 2], y - mPoints[last * 2 + 1]);
+            add(x, y, mLengths[last] + segment);
+        }
+
+        private void add(float x, float y, float length) {
+            if (mPointCount * 2 == mPoints.length) {
+                mPoints = Arrays.copyOf(mPoints, mPoints.length * 2);
+                mLengths = Arrays.copyOf(mLengths, mLengths.length * 2);
+            }
+            mPoints[mPointCount * 2] = x;
+            mPoints[mPointCount * 2 + 1] = y;
+            mLengths[mPointCount] = length;
+            mPointCount++;
+        }
+
+        Polyline build() {
+            return new Polyline(
+                    Arrays.copyOf(mPoints, mPointCount * 2),
+                    Arrays.copyOf(mLengths, mPointCount),
+                    Arrays.copyOf(mContours, mContourCount),
+                    mPointCount);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.content.Context;
+import android.os.Debug;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.WindowManager;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Opt-in draw cost metrics, aggregated per view class. Disabled by default;
+ * enable them with {@link #setEnabled(boolean)} or, without rebuilding, with:
+ *
+ * <pre>
+ * adb shell setprop log.tag.RenderMetrics DEBUG
+ * </pre>
+ *
+ * and print them with:
+ *
+ * <pre>
+ * adb shell dumpsys activity org.curiouscreature.android.roadtrip/.MainActivity [reset]
+ * </pre>
+ *
+ * When enabled, a Choreographer callback also counts the frames dropped by
+ * the application and the objects allocated by the UI thread per frame.
+ * Allocation counting slows the runtime down and only makes sense to track
+ * relative changes. All the methods must be invoked from the UI thread.
+ */
+final class RenderMetrics {
+    private static final String LOG_TAG = "RenderMetrics";
+
+    private static final Map<String, RenderMetrics> sMetrics =
+            new LinkedHashMap<String, RenderMetrics>();
+    private static boolean sEnabled;
+    private static FrameMonitor sFrameMonitor;
+    private static int sStartAllocCount;
+
+    private final String mName;
+    private final Histogram mDrawTimes = new Histogram();
+    private final Histogram mPhaseUpdateTimes = new Histogram();
+    private long mPathCount;
+    private long mVertexCount;
+    private long mAllocCount;
+    private int mMaxAllocCount;
+    private int mLastPathCount;
+    private int mLastVertexCount;
+    private int mLastAllocCount;
+
+    /**
+     * Distribution of durations in power of two buckets, from 1ms to 32ms.
+     */
+    static final class Histogram {
+        private static final long[] BUCKET_LIMITS_NANOS = {
+                1000000L, 2000000L, 4000000L, 8000000L, 16000000L, 32000000L
+        };
+
+        private final long[] mCounts = new long[BUCKET_LIMITS_NANOS.length + 1];
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_NANOS.length && nanos >= BUCKET_LIMITS_NANOS[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the number of durations in the specified bucket. Bucket i
+         * counts durations shorter than 2^i ms; the last bucket counts
+         * durations of 32ms or more.
+         */
+        long getBucketCount(int bucket) {
+            return mCounts[bucket];
+        }
+
+        int getBucketCount() {
+            return mCounts.length;
+        }
+
+        float getAverageMillis() {
+            return mCount == 0 ? 0.0f : mTotalNanos / (float) mCount / 1e6f;
+        }
+
+        float getMaxMillis() {
+            return mMaxNanos / 1e6f;
+        }
+
+        void reset() {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = 0;
+            }
+            mCount = 0;
+            mTotalNanos = 0;
+            mMaxNanos = 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("count=").append(mCount);
+            builder.append(" avg=").append(String.format("%.2fms", getAverageMillis()));
+            builder.append(" max=").append(String.format("%.2fms", getMaxMillis()));
+            builder.append(" [");
+            for (int i = 0; i < mCounts.length; i++) {
+                if (i > 0) builder.append(' ');
+                builder.append(i < BUCKET_LIMITS_NANOS.length ?
+                        "<" + BUCKET_LIMITS_NANOS[i] / 1000000L + "ms" :
+                        ">=" + BUCKET_LIMITS_NANOS[i - 1] / 1000000L + "ms");
+                builder.append(':').append(mCounts[i]);
+            }
+            builder.append(']');
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Counts the vsync intervals skipped between two consecutive frames.
+     */
+    private static final class FrameMonitor implements Choreographer.FrameCallback {
+        private final long mFrameIntervalNanos;
+        private long mLastFrameNanos;
+        private long mFrameCount;
+        private long mDroppedFrameCount;
+        private long mAllocCount;
+        private int mMaxAllocCount;
+        private int mLastAllocCount;
+        private boolean mRunning;
+
+        FrameMonitor(float refreshRate) {
+            mFrameIntervalNanos = (long) (1e9 / refreshRate);
+        }
+
+        void start() {
+            if (mRunning) return;
+            mRunning = true;
+            mLastFrameNanos = 0;
+            setAllocCounting(true);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        void stop() {
+            mRunning = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+            setAllocCounting(false);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mRunning) return;
+
+            // Everything allocated by the UI thread since the previous frame
+            final int allocCount = Debug.getThreadAllocCount();
+            if (mLastFrameNanos != 0) {
+                long skipped = (frameTimeNanos - mLastFrameNanos) / mFrameIntervalNanos - 1;
+                if (skipped > 0) mDroppedFrameCount += skipped;
+                mFrameCount++;
+
+                int frameAllocCount = allocCount - mLastAllocCount;
+                mAllocCount += frameAllocCount;
+                mMaxAllocCount = Math.max(mMaxAllocCount, frameAllocCount);
+            }
+            mLastFrameNanos = frameTimeNanos;
+            mLastAllocCount = allocCount;
+
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        void reset() {
+            mFrameCount = 0;
+            mDroppedFrameCount = 0;
+            mAllocCount = 0;
+            mMaxAllocCount = 0;
+            mLastFrameNanos = 0;
+        }
+    }
+
+    /**
+     * Starts or stops counting the objects allocated by the runtime, read
+     * with Debug.getThreadAllocCount(). The framework has no replacement for
+     * these deprecated calls: the runtime only counts allocations while they
+     * are enabled, and the counts stay at 0 without them.
+     */
+    @SuppressWarnings("deprecation")
+    private static void setAllocCounting(boolean enabled) {
+        if (enabled) {
+            Debug.startAllocCounting();
+        } else {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private RenderMetrics(String name) {
+        mName = name;
+    }
+
+    /**
+     * Enables the metrics if requested with the system property
+     * log.tag.RenderMetrics. Must be invoked before the views are drawn.
+     */
+    static void init(Context context) {
+        if (sFrameMonitor == null) {
+            WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+            sFrameMonitor = new FrameMonitor(wm.getDefaultDisplay().getRefreshRate());
+        }
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) setEnabled(true);
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+        if (sFrameMonitor != null) {
+            if (enabled) {
+                sFrameMonitor.start();
+            } else {
+                sFrameMonitor.stop();
+            }
+        }
+    }
+
+    /**
+     * Returns the metrics of the specified view class, created on first use.
+     */
+    static RenderMetrics get(String name) {
+        RenderMetrics metrics = sMetrics.get(name);
+        if (metrics == null) {
+            metrics = new RenderMetrics(name);
+            sMetrics.put(name, metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns a timestamp to pass to the record methods, or 0 if the
+     * metrics are disabled.
+     */
+    static long start() {
+        if (!sEnabled) return 0;
+        sStartAllocCount = Debug.getThreadAllocCount();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a call to onDraw() that drew the specified number of paths and
+     * vertices, and the objects it allocated. Does nothing if the start
+     * timestamp is 0.
+     */
+    void recordDraw(long startNanos, int pathCount, int vertexCount) {
+        if (startNanos == 0) return;
+        mDrawTimes.record(System.nanoTime() - startNanos);
+        final int allocCount = Debug.getThreadAllocCount() - sStartAllocCount;
+        mPathCount += pathCount;
+        mVertexCount += vertexCount;
+        mAllocCount += allocCount;
+        mMaxAllocCount = Math.max(mMaxAllocCount, allocCount);
+        mLastPathCount = pathCount;
+        mLastVertexCount = vertexCount;
+        mLastAllocCount = allocCount;
+    }
+
+    /**
+     * Records an update of the render paths for a new phase. Does nothing
+     * if the start timestamp is 0.
+     */
+    void recordPhaseUpdate(long startNanos) {
+        if (startNanos == 0) return;
+        mPhaseUpdateTimes.record(System.nanoTime() - startNanos);
+    }
+
+    Histogram getDrawTimes() {
+        return mDrawTimes;
+    }
+
+    Histogram getPhaseUpdateTimes() {
+        return mPhaseUpdateTimes;
+    }
+
+    long getPathCount() {
+        return mPathCount;
+    }
+
+    long getVertexCount() {
+        return mVertexCount;
+    }
+
+    /**
+     * Returns the number of objects allocated by all the recorded calls to
+     * onDraw(). Should remain 0.
+     */
+    long getDrawAllocCount() {
+        return mAllocCount;
+    }
+
+    static long getFrameCount() {
+        return sFrameMonitor == null ? 0 : sFrameMonitor.mFrameCount;
+    }
+
+    static long getDroppedFrameCount() {
+        return sFrameMonitor == null ? 0 : sFrameMonitor.mDroppedFrameCount;
+    }
+
+    /**
+     * Returns the number of objects allocated by the UI thread during the
+     * monitored frames.
+     */
+    static long getFrameAllocCount() {
+        return sFrameMonitor == null ? 0 : sFrameMonitor.mAllocCount;
+    }
+
+    static void resetAll() {
+        for (RenderMetrics metrics : sMetrics.values()) {
+            metrics.mDrawTimes.reset();
+            metrics.mPhaseUpdateTimes.reset();
+            metrics.mPathCount = 0;
+            metrics.mVertexCount = 0;
+            metrics.mAllocCount = 0;
+            metrics.mMaxAllocCount = 0;
+        }
+        if (sFrameMonitor != null) sFrameMonitor.reset();
+    }
+
+    static void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Render metrics " + (sEnabled ? "enabled" : "disabled"));
+        writer.print(prefix);
+        writer.println("  frames=" + getFrameCount() + " dropped=" + getDroppedFrameCount());
+        if (sFrameMonitor != null) {
+            final long frameCount = getFrameCount();
+            writer.print(prefix);
+            writer.println("  allocations per frame: avg=" +
+                    (frameCount == 0 ? 0 : sFrameMonitor.mAllocCount / frameCount) +
+                    " max=" + sFrameMonitor.mMaxAllocCount);
+        }
+        for (RenderMetrics metrics : sMetrics.values()) {
+            writer.print(prefix);
+            writer.println("  " + metrics.mName + ":");
+            writer.print(prefix);
+            writer.println("    draw: " + metrics.mDrawTimes);
+            writer.print(prefix);
+            writer.println("    phase update: " + metrics.mPhaseUpdateTimes);
+            writer.print(prefix);
+            writer.println("    paths=" + metrics.mPathCount + " vertices=" + metrics.mVertexCount +
+                    " last frame: paths=" + metrics.mLastPathCount +
+                    " vertices=" + metrics.mLastVertexCount);
+            writer.print(prefix);
+            writer.println("    allocations in draw: total=" + metrics.mAllocCount +
+                    " max=" + metrics.mMaxAllocCount + " last frame=" + metrics.mLastAllocCount);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.util.SparseArray;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Vertical list of rows of identical height, laid out below an empty header.
+ * The list is meant to be the content of a scroll view: it measures the full
+ * height of its rows but only materializes the rows intersecting the viewport
+ * of the scroll view, extended by a prefetch distance above and below. Rows
+ * leaving that window are detached and bound again to the rows entering it.
+ *
+ * Rows are bound and measured by onMeasure(), or right away when the viewport
+ * moves, and never during layout. Binding a row requests a layout of the row:
+ * like AbsListView, the list blocks these requests while it binds rows, and
+ * measures and lays out the rows itself.
+ */
+public class StateListView extends ViewGroup {
+    public interface Adapter {
+        int getCount();
+
+        /**
+         * Creates a new row. The row is then bound to a position.
+         */
+        View createView(ViewGroup parent);
+
+        void bindView(View view, int position);
+
+        /**
+         * Invoked before a row is detached to be bound to another position.
+         */
+        void unbindView(View view, int position);
+    }
+
+    private final SparseArray<View> mActiveViews = new SparseArray<View>();
+    private final List<View> mScrapViews = new ArrayList<View>();
+
+    private Adapter mAdapter;
+    private int mItemHeight;
+    private int mHeaderHeight;
+    private int mPrefetchDistance;
+
+    private int mViewportTop;
+    private int mViewportHeight;
+
+    private boolean mBlockLayoutRequests;
+
+    public StateListView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public StateListView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        mItemHeight = getResources().getDimensionPixelSize(R.dimen.state_height);
+    }
+
+    public void setAdapter(Adapter adapter) {
+        if (mAdapter != null) scrapAll();
+        mAdapter = adapter;
+        requestLayout();
+    }
+
+    /**
+     * Must be invoked when the number of rows changes. Rows already bound
+     * keep their position and are not bound again.
+     */
+    public void notifyDataSetChanged() {
+        requestLayout();
+    }
+
+    public void setHeaderHeight(int headerHeight) {
+        if (mHeaderHeight != headerHeight) {
+            mHeaderHeight = headerHeight;
+            requestLayout();
+        }
+    }
+
+    /**
+     * Sets the distance beyond the viewport in which rows are materialized.
+     */
+    public void setPrefetchDistance(int prefetchDistance) {
+        mPrefetchDistance = prefetchDistance;
+    }
+
+    /**
+     * Sets the region of the list visible in the enclosing scroll view, in
+     * the coordinates of this view. Rows entering or leaving the viewport
+     * are bound or recycled right away.
+     */
+    public void setViewport(int top, int height) {
+        mViewportTop = top;
+        mViewportHeight = height;
+        if (!isLayoutRequested() && getWidth() > 0 && fill(getWidth())) {
+            layoutRows();
+        }
+    }
+
+    public int getItemHeight() {
+        return mItemHeight;
+    }
+
+    public int getItemTop(int position) {
+        return mHeaderHeight + position * mItemHeight;
+    }
+
+    /**
+     * Returns the first row intersecting the viewport. Rows have the same
+     * height, the position is computed rather than searched.
+     */
+    public int getFirstVisiblePosition() {
+        return Math.max(0, positionAt(mViewportTop));
+    }
+
+    /**
+     * Returns the last row intersecting the viewport, or -1 if the viewport
+     * only shows the header.
+     */
+    public int getLastVisiblePosition() {
+        final int count = mAdapter == null ? 0 : mAdapter.getCount();
+        return Math.min(count - 1, positionAt(mViewportTop + mViewportHeight - 1));
+    }
+
+    /**
+     * Returns the row bound to the specified position, or null if the
+     * position is not materialized.
+     */
+    public View getViewForPosition(int position) {
+        return mActiveViews.get(position);
+    }
+
+    /**
+     * Returns the last position materialized by the viewport, which may be
+     * past the end of the list.
+     */
+    public int getLastPrefetchedPosition() {
+        return positionAt(mViewportTop + mViewportHeight + mPrefetchDistance - 1);
+    }
+
+    private int positionAt(int y) {
+        y -= mHeaderHeight;
+        return y < 0 ? -1 : y / mItemHeight;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        final int count = mAdapter == null ? 0 : mAdapter.getCount();
+        final int width = MeasureSpec.getSize(widthMeasureSpec);
+        final int height = count == 0 ? 0 : mHeaderHeight + count * mItemHeight;
+        setMeasuredDimension(width, height);
+
+        final int childCount = getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            measureRow(getChildAt(i), width);
+        }
+        // Rows bound now are measured by fill()
+        fill(width);
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        layoutRows();
+    }
+
+    @Override
+    public void requestLayout() {
+        if (!mBlockLayoutRequests) super.requestLayout();
+    }
+
+    private void layoutRows() {
+        final int count = mActiveViews.size();
+        for (int i = 0; i < count; i++) {
+            layoutRow(mActiveViews.valueAt(i), mActiveViews.keyAt(i));
+        }
+    }
+
+    /**
+     * Recycles the rows outside of the viewport, then binds and measures the
+     * rows entering it. The new rows must be laid out afterwards.
+     *
+     * @return True if rows were recycled or bound
+     */
+    private boolean fill(int width) {
+        final int count = mAdapter == null ? 0 : mAdapter.getCount();
+
+        int first = Math.max(0, positionAt(mViewportTop - mPrefetchDistance));
+        int last = Math.min(count - 1, getLastPrefetchedPosition());
+
+        mBlockLayoutRequests = true;
+        boolean changed = false;
+        for (int i = mActiveViews.size() - 1; i >= 0; i--) {
+            int position = mActiveViews.keyAt(i);
+            if (position < first || position > last) {
+                View view = mActiveViews.valueAt(i);
+                mAdapter.unbindView(view, position);
+                detachViewFromParent(view);
+                mScrapViews.add(view);
+                mActiveViews.removeAt(i);
+                changed = true;
+            }
+        }
+
+        for (int position = first; position <= last; position++) {
+            if (mActiveViews.get(position) != null) continue;
+
+            View view;
+            if (!mScrapViews.isEmpty()) {
+                view = mScrapViews.remove(mScrapViews.size() - 1);
+                attachViewToParent(view, -1, view.getLayoutParams());
+            } else {
+                view = mAdapter.createView(this);
+                addViewInLayout(view, -1, view.getLayoutParams(), true);
+            }
+            mAdapter.bindView(view, position);
+            mActiveViews.put(position, view);
+
+            measureRow(view, width);
+            changed = true;
+        }
+        mBlockLayoutRequests = false;
+
+        if (changed) invalidate();
+        return changed;
+    }
+
+    private void scrapAll() {
+        for (int i = mActiveViews.size() - 1; i >= 0; i--) {
+            View view = mActiveViews.valueAt(i);
+            mAdapter.unbindView(view, mActiveViews.keyAt(i));
+            detachViewFromParent(view);
+            mScrapViews.add(view);
+        }
+        mActiveViews.clear();
+    }
+
+    private void measureRow(View view, int width) {
+        view.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(mItemHeight, MeasureSpec.EXACTLY));
+    }
+
+    private void layoutRow(View view, int position) {
+        final int top = getItemTop(position);
+        view.layout(0, top, view.getMeasuredWidth(), top + mItemHeight);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        // Scrapped rows are not children anymore and must be detached explicitly
+        for (View view : mScrapViews) {
+            removeDetachedView(view, false);
+        }
+        mScrapViews.clear();
+    }
+
+    @Override
+    protected LayoutParams generateDefaultLayoutParams() {
+        return new LayoutParams(LayoutParams.MATCH_PARENT, mItemHeight);
+    }
+}
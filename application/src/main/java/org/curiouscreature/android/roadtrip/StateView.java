@@ -21,33 +21,97 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.View;
 
-import java.util.ArrayList;
-import java.util.List;
-
 @SuppressWarnings("ForLoopReplaceableByForEach")
 public class StateView extends View {
-    private static final String LOG_TAG = "StateView";
-
     private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
 
     private final SvgHelper mSvg = new SvgHelper(mPaint);
-    private int mSvgResource;
+    // Segments drawn by a LineBatch have no joins, round caps hide the difference
+    private final Paint mBatchPaint;
+    // Read by the loader threads
+    private volatile int mSvgResource;
 
-    private final Object mSvgLock = new Object();
-    private List<SvgHelper.SvgPath> mPaths = new ArrayList<SvgHelper.SvgPath>(0);
-    private Thread mLoader;
+    // Published by the loader with a single volatile write, never locked.
+    // onDraw() and setPhase() only ever see a fully built set
+    private volatile SvgHelper.PathSet mPathSet = SvgHelper.PathSet.EMPTY;
+    // Used once the map is fully revealed
+    private final StaticFrameCache mFrameCache = new StaticFrameCache();
+    // Builds the frame cache after a frame drawn at phase 1, outside of the draw pass
+    private final Runnable mBuildFrameCache = new Runnable() {
+        @Override
+        public void run() {
+            mFrameCachePending = false;
+            if (mAttached && mPhase >= 1.0f && !mFrameCache.isValid()) {
+                mFrameCache.build(mPathSet, mBatchPaint);
+            }
+        }
+    };
+    private boolean mFrameCachePending;
+    // States are laid out below the intro, load them after the intro
+    private final MapLoader mLoader = new MapLoader(MapLoader.PRIORITY_LOW, new MapLoader.Callback() {
+        @Override
+        public SvgHelper.PathSet onLoad(int width, int height) {
+            mSvg.load(getContext(), mSvgResource);
+            // The new set is not visible to the UI thread yet, prepare it here
+            SvgHelper.PathSet pathSet = mSvg.getPathsForViewport(width, height);
+            pathSet.setPhase(mPhase);
+            return pathSet;
+        }
+
+        @Override
+        public void onLoaded(SvgHelper.PathSet pathSet) {
+            if (!mAttached) {
+                // Do not keep the map pinned, load it again once attached
+                mSvg.release();
+                mReloadOnAttach = true;
+                return;
+            }
+
+            // Catch up with phase changes that happened during the load
+            pathSet.setPhase(mPhase);
+            mPathSet = pathSet;
+            mFrameCache.invalidate();
+
+            mLayerDecision = LayerPolicy.decide(getContext(), pathSet, false, getWidth(), getHeight());
+            LayerPolicy.apply(StateView.this, mLayerDecision);
+
+            invalidate();
+        }
+
+        @Override
+        public void onCancelled() {
+            // The load may have acquired the map after onDetachedFromWindow() released it
+            if (!mAttached) mSvg.release();
+        }
+    });
 
-    private float mPhase;
+    private volatile float mPhase;
+    private float mInitialPhase = 1.0f;
     private float mFadeFactor;
     private int mDuration;
     private float mParallax = 1.0f;
     private float mOffsetY;
 
     private ObjectAnimator mSvgAnimator;
+    private boolean mRevealed;
+
+    // Regions invalidated by the animations, in view coordinates
+    private final RectF mDirtyBounds = new RectF();
+    private final Rect mDirtyRect = new Rect();
+
+    private LayerPolicy.Decision mLayerDecision;
+
+    // UI thread only. A detached view does not hold its map, loads that
+    // complete while it is detached start again once it is attached
+    private boolean mAttached;
+    private boolean mReloadOnAttach;
+
+    private final RenderMetrics mMetrics = RenderMetrics.get("StateView");
 
     public StateView(Context context, AttributeSet attrs) {
         this(context, attrs, 0);
@@ -58,29 +122,23 @@ public class StateView extends View {
 
         mPaint.setStyle(Paint.Style.STROKE);
 
-        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.IntroView, defStyle, 0);
+        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.StateView, defStyle, 0);
         try {
             if (a != null) {
                 mPaint.setStrokeWidth(a.getFloat(R.styleable.StateView_strokeWidth, 1.0f));
                 mPaint.setColor(a.getColor(R.styleable.StateView_strokeColor, 0xff000000));
-                mPhase = a.getFloat(R.styleable.StateView_phase, 1.0f);
+                mSvg.setBatched(a.getBoolean(R.styleable.StateView_batchPaths, false));
+                mInitialPhase = a.getFloat(R.styleable.StateView_phase, 1.0f);
+                mPhase = mInitialPhase;
                 mDuration = a.getInt(R.styleable.StateView_duration, 4000);
                 mFadeFactor = a.getFloat(R.styleable.StateView_fadeFactor, 10.0f);
             }
         } finally {
             if (a != null) a.recycle();
         }
-    }
 
-    private void updatePathsPhaseLocked() {
-        final int count = mPaths.size();
-        for (int i = 0; i < count; i++) {
-            SvgHelper.SvgPath svgPath = mPaths.get(i);
-            svgPath.renderPath.reset();
-            svgPath.measure.getSegment(0.0f, svgPath.length * mPhase, svgPath.renderPath, true);
-            // Required only for Android 4.4 and earlier
-            svgPath.renderPath.rLineTo(0.0f, 0.0f);
-        }
+        mBatchPaint = new Paint(mPaint);
+        mBatchPaint.setStrokeCap(Paint.Cap.ROUND);
     }
 
     public float getParallax() {
@@ -88,8 +146,17 @@ public class StateView extends View {
     }
 
     public void setParallax(float parallax) {
+        if (mParallax == parallax) return;
         mParallax = parallax;
-        invalidate();
+        invalidateMap();
+    }
+
+    /**
+     * Returns the layer type decision made for the current map, or null if
+     * the map is not loaded yet.
+     */
+    LayerPolicy.Decision getLayerDecision() {
+        return mLayerDecision;
     }
 
     public float getPhase() {
@@ -97,11 +164,44 @@ public class StateView extends View {
     }
 
     public void setPhase(float phase) {
+        final float previousPhase = mPhase;
         mPhase = phase;
-        synchronized (mSvgLock) {
-            updatePathsPhaseLocked();
+        final long start = RenderMetrics.start();
+        final boolean changed = mPathSet.setPhase(phase);
+        mMetrics.recordPhaseUpdate(start);
+        if (phase < 1.0f) mFrameCache.invalidate();
+
+        // Only the segments revealed or erased need to be drawn again,
+        // unless the opacity of the whole map changed
+        if (getMapAlpha(previousPhase) != getMapAlpha(phase)) {
+            invalidateMap();
+        } else if (changed && mPathSet.getDirtyBounds(mDirtyBounds)) {
+            invalidateMap(mDirtyBounds);
         }
-        invalidate();
+    }
+
+    private int getMapAlpha(float phase) {
+        // We use the fade factor to speed up the alpha animation
+        int alpha = (int) (Math.min(phase * mFadeFactor, 1.0f) * 255.0f);
+        return (int) (alpha * mParallax);
+    }
+
+    private void invalidateMap() {
+        mDirtyBounds.set(mPathSet.bounds);
+        invalidateMap(mDirtyBounds);
+    }
+
+    /**
+     * Invalidates the specified bounds of the map, outset by the stroke and
+     * by one pixel for antialiasing.
+     */
+    private void invalidateMap(RectF bounds) {
+        // Same transform as onDraw()
+        bounds.offset(getPaddingLeft(), getPaddingTop() + mOffsetY);
+        final float outset = mPaint.getStrokeWidth() / 2.0f + 1.0f;
+        bounds.inset(-outset, -outset);
+        bounds.roundOut(mDirtyRect);
+        invalidate(mDirtyRect);
     }
 
     public int getSvgResource() {
@@ -109,66 +209,134 @@ public class StateView extends View {
     }
 
     public void setSvgResource(int svgResource) {
+        if (mSvgResource == svgResource) return;
         mSvgResource = svgResource;
+
+        // A recycled view already has a size, load the new map right away
+        if (getWidth() > 0 && getHeight() > 0) {
+            mPathSet = SvgHelper.PathSet.EMPTY;
+            mFrameCache.invalidate();
+            mLoader.load(getWidth() - getPaddingLeft() - getPaddingRight(),
+                    getHeight() - getPaddingTop() - getPaddingBottom());
+            invalidate();
+        }
+    }
+
+    /**
+     * Indicates whether the map was already revealed. A view that is not
+     * revealed animates its map the next time {@link #reveal(View, int)}
+     * is invoked. Used to restore the state of recycled views.
+     */
+    public boolean isRevealed() {
+        return mRevealed;
+    }
+
+    public void setRevealed(boolean revealed) {
+        mRevealed = revealed;
+        if (mSvgAnimator != null) AnimationScheduler.getInstance().cancel(mSvgAnimator);
+        setPhase(revealed ? 1.0f : mInitialPhase);
     }
 
     @Override
-    protected void onSizeChanged(final int w, final int h, int oldw, int oldh) {
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
 
-        if (mLoader != null) {
-            try {
-                mLoader.join();
-            } catch (InterruptedException e) {
-                Log.e(LOG_TAG, "Unexpected error", e);
-            }
+        mFrameCache.invalidate();
+        mLoader.load(w - getPaddingLeft() - getPaddingRight(),
+                h - getPaddingTop() - getPaddingBottom());
+
+        // Views without a size are not visible, animators may have been parked
+        AnimationScheduler.getInstance().update(this);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+        if (mReloadOnAttach) {
+            mReloadOnAttach = false;
+            mLoader.load(getWidth() - getPaddingLeft() - getPaddingRight(),
+                    getHeight() - getPaddingTop() - getPaddingBottom());
         }
+        AnimationScheduler.getInstance().update(this);
+    }
 
-        mLoader = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                mSvg.load(getContext(), mSvgResource);
-                synchronized (mSvgLock) {
-                    mPaths = mSvg.getPathsForViewport(
-                            w - getPaddingLeft() - getPaddingRight(),
-                            h - getPaddingTop() - getPaddingBottom());
-                    updatePathsPhaseLocked();
-                }
-            }
-        }, "SVG Loader");
-        mLoader.start();
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        AnimationScheduler.getInstance().update(this);
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        AnimationScheduler.getInstance().update(this);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // Resumed by onAttachedToWindow(), if the view is attached again
+        AnimationScheduler.getInstance().park(this);
+        mAttached = false;
+        // A load that did not complete acquires the map again once attached
+        mReloadOnAttach = mLoader.cancel();
+        // The paths built for the current size remain valid, only the shared
+        // map is released. It will be acquired again on the next size change
+        mSvg.release();
+        removeCallbacks(mBuildFrameCache);
+        mFrameCachePending = false;
+        mFrameCache.invalidate();
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        synchronized (mSvgLock) {
-            canvas.save();
-            canvas.translate(getPaddingLeft(), getPaddingTop() + mOffsetY);
-            final int count = mPaths.size();
-            for (int i = 0; i < count; i++) {
-                SvgHelper.SvgPath svgPath = mPaths.get(i);
+        final long start = RenderMetrics.start();
+        int drawnPaths = 0;
+        int drawnVertices = 0;
 
-                // We use the fade factor to speed up the alpha animation
-                int alpha = (int) (Math.min(mPhase * mFadeFactor, 1.0f) * 255.0f);
-                svgPath.paint.setAlpha((int) (alpha * mParallax));
+        final int alpha = getMapAlpha(mPhase);
 
-                canvas.drawPath(svgPath.renderPath, svgPath.paint);
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop() + mOffsetY);
+        // Once revealed, the map only changes in opacity and position
+        if (mPhase >= 1.0f && mFrameCache.isValid()) {
+            mFrameCache.draw(canvas, mPaint.getColor(), alpha);
+        } else {
+            mPathSet.draw(canvas, mBatchPaint, alpha);
+            if (start != 0) {
+                drawnPaths = mPathSet.paths.size();
+                drawnVertices = mPathSet.getRenderPointCount();
+            }
+            // The cache allocates a bitmap, build it once this frame is drawn
+            if (mPhase >= 1.0f && !mFrameCachePending) {
+                mFrameCachePending = true;
+                post(mBuildFrameCache);
             }
-            canvas.restore();
         }
+        canvas.restore();
+
+        mMetrics.recordDraw(start, drawnPaths, drawnVertices);
     }
 
     public void reveal(View scroller, int parentBottom) {
-        if (mSvgAnimator == null) {
-            mSvgAnimator = ObjectAnimator.ofFloat(this, "phase", 0.0f, 1.0f);
-            mSvgAnimator.setDuration(mDuration);
-            mSvgAnimator.start();
+        if (!mRevealed) {
+            mRevealed = true;
+            if (mSvgAnimator == null) {
+                mSvgAnimator = ObjectAnimator.ofFloat(this, "phase", 0.0f, 1.0f);
+                mSvgAnimator.setDuration(mDuration);
+            }
+            AnimationScheduler.getInstance().start(this, mSvgAnimator);
         }
 
-        float previousOffset = mOffsetY;
-        mOffsetY = Math.min(0, scroller.getHeight() - (parentBottom - scroller.getScrollY()));
-        if (previousOffset != mOffsetY) invalidate();
+        float offsetY = Math.min(0, scroller.getHeight() - (parentBottom - scroller.getScrollY()));
+        if (offsetY != mOffsetY) {
+            // The map moves, invalidate its previous and new positions
+            invalidateMap();
+            mOffsetY = offsetY;
+            invalidateMap();
+        }
     }
 }
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Rasterized copy of a fully revealed map. Once the reveal animation is
+ * complete, the map only changes in opacity and position: drawing a single
+ * bitmap is then much cheaper than drawing every path again.
+ *
+ * All the paths of a map share the same color, the bitmap only stores
+ * coverage (ALPHA_8) and is tinted with the color of the paint at draw time.
+ */
+final class StaticFrameCache {
+    private static final String LOG_TAG = "StaticFrameCache";
+
+    private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mBounds = new Rect();
+    private Bitmap mBitmap;
+
+    boolean isValid() {
+        return mBitmap != null;
+    }
+
+    /**
+     * Discards the cached frame. Must be called whenever the size of the
+     * view or the paths change.
+     */
+    void invalidate() {
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+    }
+
+    /**
+     * Rasterizes the specified set at its current phase, at full opacity.
+     *
+     * @return False if the frame could not be cached
+     */
+    boolean build(SvgHelper.PathSet pathSet, Paint batchPaint) {
+        invalidate();
+
+        final List<SvgHelper.SvgPath> paths = pathSet.paths;
+        final int count = paths.size();
+        if (count == 0) return false;
+
+        float strokeWidth = 0.0f;
+        mBounds.setEmpty();
+        for (int i = 0; i < count; i++) {
+            SvgHelper.SvgPath svgPath = paths.get(i);
+            mBounds.union(svgPath.bounds);
+            strokeWidth = Math.max(strokeWidth, svgPath.paint.getStrokeWidth());
+        }
+        // Leave room for the stroke and antialiasing
+        int outset = (int) Math.ceil(strokeWidth / 2.0f) + 1;
+        mBounds.inset(-outset, -outset);
+        if (mBounds.isEmpty()) return false;
+
+        try {
+            mBitmap = Bitmap.createBitmap(mBounds.width(), mBounds.height(), Bitmap.Config.ALPHA_8);
+        } catch (OutOfMemoryError e) {
+            Log.w(LOG_TAG, "Not enough memory to cache the map", e);
+            return false;
+        }
+
+        Canvas canvas = new Canvas(mBitmap);
+        canvas.translate(-mBounds.left, -mBounds.top);
+        pathSet.draw(canvas, batchPaint, 255);
+
+        return true;
+    }
+
+    /**
+     * Draws the cached frame at the position of the paths it was built from,
+     * tinted with the specified color and opacity.
+     */
+    void draw(Canvas canvas, int color, int alpha) {
+        mBitmapPaint.setColor(color);
+        mBitmapPaint.setAlpha(alpha);
+        canvas.drawBitmap(mBitmap, mBounds.left, mBounds.top, mBitmapPaint);
+    }
+}
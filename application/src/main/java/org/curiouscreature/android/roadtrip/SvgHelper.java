@@ -17,34 +17,123 @@
 package org.curiouscreature.android.roadtrip;
 
 import android.content.Context;
+import android.content.res.AssetManager;
 import android.graphics.*;
 import android.util.Log;
-import com.caverock.androidsvg.PreserveAspectRatio;
-import com.caverock.androidsvg.SVG;
-import com.caverock.androidsvg.SVGParseException;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class SvgHelper {
     private static final String LOG_TAG = "SVG";
 
-    private final List<SvgPath> mPaths = new ArrayList<SvgPath>();
+    // Generated at build time from res/raw/map_*.svg by the compileMaps task
+    private static final String COMPILED_MAPS_DIR = "maps/";
+    private static final String COMPILED_MAP_EXTENSION = ".bin";
+
     private final Paint mSourcePaint;
 
-    private SVG mSvg;
+    private MapLevels mLevels;
+    private int mResource;
+    private float mDensity = 1.0f;
+    private boolean mBatched;
 
     public SvgHelper(Paint sourcePaint) {
         mSourcePaint = sourcePaint;
     }
 
-    public void load(Context context, int svgResource) {
-        if (mSvg != null) return;
+    /**
+     * Indicates whether the sets returned by {@link #getPathsForViewport(int, int)}
+     * draw their paths in a {@link LineBatch} instead of one path at a time.
+     */
+    public synchronized void setBatched(boolean batched) {
+        mBatched = batched;
+    }
+
+    /**
+     * Loads the specified map from the shared {@link MapRegistry}, releasing
+     * the map previously loaded if it is different. This method blocks and
+     * must not be invoked from the UI thread.
+     */
+    public synchronized void load(Context context, int svgResource) {
+        if (mLevels != null) {
+            if (mResource == svgResource) return;
+            release();
+        }
+        mLevels = MapRegistry.getInstance().acquire(context, svgResource);
+        if (mLevels != null) mResource = svgResource;
+        mDensity = context.getResources().getDisplayMetrics().density;
+    }
+
+    /**
+     * Releases the map loaded by {@link #load(Context, int)}. The map will be
+     * loaded again, most likely from the registry, on the next call to load().
+     */
+    public synchronized void release() {
+        if (mLevels == null) return;
+        mLevels = null;
+        MapRegistry.getInstance().release(mResource);
+    }
+
+    static MapGeometry loadGeometry(Context context, int svgResource) {
+        MapGeometry geometry = loadCompiled(context, svgResource);
+        if (geometry != null) return geometry;
+
+        Log.w(LOG_TAG, "No valid compiled map, parsing SVG resource");
+        return loadSvg(context, svgResource);
+    }
+
+    private static MapGeometry loadSvg(Context context, int svgResource) {
+        InputStream in = null;
         try {
-            mSvg = SVG.getFromResource(context, svgResource);
-            mSvg.setDocumentPreserveAspectRatio(PreserveAspectRatio.UNSCALED);
-        } catch (SVGParseException e) {
+            in = context.getResources().openRawResource(svgResource);
+            return SvgMapReader.read(new InputStreamReader(in, "UTF-8"));
+        } catch (IOException e) {
             Log.e(LOG_TAG, "Could not load specified SVG resource", e);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Could not parse specified SVG resource", e);
+        } finally {
+            closeQuietly(in);
+        }
+        return null;
+    }
+
+    private static MapGeometry loadCompiled(Context context, int svgResource) {
+        String name = COMPILED_MAPS_DIR +
+                context.getResources().getResourceEntryName(svgResource) + COMPILED_MAP_EXTENSION;
+
+        InputStream in = null;
+        try {
+            in = context.getAssets().open(name, AssetManager.ACCESS_BUFFER);
+            // Assets know their uncompressed length, read the file in one go
+            byte[] data = new byte[in.available()];
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) throw new IOException("Truncated compiled map: " + name);
+                read += count;
+            }
+            return MapGeometry.read(ByteBuffer.wrap(data));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not load compiled map " + name, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore
+            }
         }
     }
 
@@ -54,63 +143,313 @@ public class SvgHelper {
                 Integer.MIN_VALUE, Integer.MIN_VALUE,
                 Integer.MAX_VALUE, Integer.MAX_VALUE);
 
+        /**
+         * Source path, null if this path was created from a polyline.
+         */
         final Path path;
-        final Path renderPath = new Path();
+        /**
+         * Flattened path, null if this path was created from a Path.
+         */
+        final Polyline polyline;
+
         final Paint paint;
         final float length;
         final Rect bounds;
         final PathMeasure measure;
 
+        // Phase-dependent paths, double-buffered: setPhase() always writes
+        // the back buffer and only then makes it the front buffer
+        private final Path[] mRenderPaths = { new Path(), new Path() };
+        private final int[] mRenderPointCounts = new int[2];
+        private int mFront;
+
         SvgPath(Path path, Paint paint) {
             this.path = path;
+            this.polyline = null;
             this.paint = paint;
 
             measure = new PathMeasure(path, false);
             this.length = measure.getLength();
 
-            sRegion.setPath(path, sMaxClip);
-            bounds = sRegion.getBounds();
+            synchronized (sRegion) {
+                sRegion.setPath(path, sMaxClip);
+                bounds = sRegion.getBounds();
+            }
+        }
+
+        SvgPath(Polyline polyline, Paint paint, Rect bounds) {
+            this.path = null;
+            this.polyline = polyline;
+            this.paint = paint;
+            this.length = polyline.length;
+            this.bounds = bounds;
+            this.measure = null;
+        }
+
+        /**
+         * Returns the path to draw for the last phase set with {@link #setPhase(float)}.
+         */
+        Path getRenderPath() {
+            return mRenderPaths[mFront];
+        }
+
+        /**
+         * Returns the number of points of the render path, or 0 if this
+         * path was not created from a polyline.
+         */
+        int getRenderPointCount() {
+            return mRenderPointCounts[mFront];
+        }
+
+        /**
+         * Sets the render path to the beginning of this path, up to phase * length.
+         * Polylines find the last point to draw with a binary search in their
+         * precomputed lengths, without walking the contours of the path.
+         */
+        void setPhase(float phase) {
+            final Path renderPath = mRenderPaths[mFront ^ 1];
+            renderPath.rewind();
+            int pointCount = 0;
+
+            if (polyline == null) {
+                measure.getSegment(0.0f, length * phase, renderPath, true);
+            } else {
+                final float distance = length * phase;
+                final float[] points = polyline.points;
+                final float[] lengths = polyline.lengths;
+                final int[] contours = polyline.contours;
+
+                final int last = polyline.indexOf(distance);
+                pointCount = last + 1;
+                int contour = 0;
+                for (int i = 0; i <= last; i++) {
+                    if (contour < contours.length && contours[contour] == i) {
+                        renderPath.moveTo(points[i * 2], points[i * 2 + 1]);
+                        contour++;
+                    } else {
+                        renderPath.lineTo(points[i * 2], points[i * 2 + 1]);
+                    }
+                }
+
+                final int next = last + 1;
+                if (next < polyline.pointCount &&
+                        (contour >= contours.length || contours[contour] != next)) {
+                    float t = (distance - lengths[last]) / (lengths[next] - lengths[last]);
+                    pointCount++;
+                    renderPath.lineTo(
+                            points[last * 2] + (points[next * 2] - points[last * 2]) * t,
+                            points[last * 2 + 1] + (points[next * 2 + 1] - points[last * 2 + 1]) * t);
+                }
+            }
+
+            // Required only for Android 4.4 and earlier
+            renderPath.rLineTo(0.0f, 0.0f);
+
+            mRenderPointCounts[mFront ^ 1] = pointCount;
+            mFront ^= 1;
         }
     }
 
-    public List<SvgPath> getPathsForViewport(final int width, final int height) {
-        mPaths.clear();
+    /**
+     * Immutable set of paths built for a viewport. A set is built entirely on
+     * a background thread and then handed over to the UI thread, which is the
+     * only one allowed to change its phase afterwards.
+     */
+    public static final class PathSet {
+        static final PathSet EMPTY = new PathSet(new ArrayList<SvgPath>(0), false);
 
-        Canvas canvas = new Canvas() {
-            private final Matrix mMatrix = new Matrix();
+        final List<SvgPath> paths;
+        /**
+         * Batch drawing all the paths, null if the paths must be drawn one
+         * at a time. When set, the render paths are not updated.
+         */
+        final LineBatch batch;
+        /**
+         * Union of the bounds of the paths, without the stroke.
+         */
+        final Rect bounds = new Rect();
+        private float mPhase = Float.NaN;
+
+        PathSet(List<SvgPath> paths, boolean batched) {
+            this.paths = Collections.unmodifiableList(paths);
+            this.batch = batched ? LineBatch.create(paths) : null;
+            for (int i = 0; i < paths.size(); i++) {
+                bounds.union(paths.get(i).bounds);
+            }
+        }
+
+        /**
+         * Draws the render paths, or the batch, for the last phase set with
+         * {@link #setPhase(float)}. The paint is only used by the batch, the
+         * paths are drawn with their own paint at the specified opacity.
+         */
+        void draw(Canvas canvas, Paint batchPaint, int alpha) {
+            if (batch != null) {
+                if (alpha == 0) return;
+                batchPaint.setAlpha(255);
+                if (alpha == 255) {
+                    batch.draw(canvas, batchPaint);
+                    return;
+                }
+
+                // The round caps of consecutive segments overlap and would be
+                // blended twice, draw them opaque in a layer faded as a whole
+                final float outset = batchPaint.getStrokeWidth() / 2.0f + 1.0f;
+                final int saveCount = canvas.saveLayerAlpha(bounds.left - outset,
+                        bounds.top - outset, bounds.right + outset, bounds.bottom + outset,
+                        alpha, Canvas.ALL_SAVE_FLAG);
+                batch.draw(canvas, batchPaint);
+                canvas.restoreToCount(saveCount);
+                return;
+            }
 
-            @Override
-            public int getWidth() {
-                return width;
+            final List<SvgPath> paths = this.paths;
+            final int count = paths.size();
+            for (int i = 0; i < count; i++) {
+                SvgPath svgPath = paths.get(i);
+                svgPath.paint.setAlpha(alpha);
+                canvas.drawPath(svgPath.getRenderPath(), svgPath.paint);
             }
+        }
+
+        /**
+         * Returns the number of vertices drawn for the current phase.
+         */
+        int getRenderPointCount() {
+            if (batch != null) return batch.getVertexCount();
 
-            @Override
-            public int getHeight() {
-                return height;
+            int count = 0;
+            for (int i = 0; i < paths.size(); i++) {
+                count += paths.get(i).getRenderPointCount();
             }
+            return count;
+        }
 
-            @Override
-            public void drawPath(Path path, Paint paint) {
-                Path dst = new Path();
+        /**
+         * Computes the bounds of what the last call to {@link #setPhase(float)}
+         * changed, without the stroke: the parts of the paths drawn or erased
+         * when the set is batched, all the paths otherwise.
+         *
+         * @return False if nothing changed
+         */
+        boolean getDirtyBounds(RectF dirty) {
+            if (batch != null) return batch.getDirtyBounds(dirty);
+            dirty.set(bounds);
+            return !bounds.isEmpty();
+        }
 
-                //noinspection deprecation
-                getMatrix(mMatrix);
-                path.transform(mMatrix, dst);
+        /**
+         * Updates the render paths of every path of the set, or the batch.
+         * Does nothing if the phase did not change.
+         *
+         * @return True if the phase changed
+         */
+        boolean setPhase(float phase) {
+            if (phase == mPhase) return false;
+            mPhase = phase;
 
-                mPaths.add(new SvgPath(dst, new Paint(mSourcePaint)));
+            if (batch != null) {
+                batch.setPhase(phase);
+                return true;
             }
-        };
 
-        RectF viewBox = mSvg.getDocumentViewBox();
-        float scale = Math.min(width / viewBox.width(), height / viewBox.height());
+            final List<SvgPath> paths = this.paths;
+            final int count = paths.size();
+            for (int i = 0; i < count; i++) {
+                paths.get(i).setPhase(phase);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Transforms the loaded map to fit the specified viewport. The paths are
+     * taken from the coarsest level of detail that stays under the tolerance
+     * of the display once scaled to the viewport: the points of that level
+     * are only transformed, the map is never flattened again for a new size.
+     *
+     * Transformed paths are kept in the {@link GeometryCache}.
+     *
+     * This method can be invoked from any thread and returns a new set every time.
+     */
+    public PathSet getPathsForViewport(int width, int height) {
+        final MapLevels levels;
+        final int resource;
+        final float density;
+        final boolean batched;
+        synchronized (this) {
+            levels = mLevels;
+            resource = mResource;
+            density = mDensity;
+            batched = mBatched;
+        }
+        if (levels == null) return PathSet.EMPTY;
 
-        canvas.translate(
-                (width - viewBox.width() * scale) / 2.0f,
-                (height - viewBox.height() * scale) / 2.0f);
-        canvas.scale(scale, scale);
+        final MapGeometry geometry = levels.geometry;
 
-        mSvg.renderToCanvas(canvas);
+        float viewBoxWidth = geometry.getViewBoxWidth();
+        float viewBoxHeight = geometry.getViewBoxHeight();
+        float scale = Math.min(width / viewBoxWidth, height / viewBoxHeight);
+
+        float dx = (width - viewBoxWidth * scale) / 2.0f - geometry.getViewBoxX() * scale;
+        float dy = (height - viewBoxHeight * scale) / 2.0f - geometry.getViewBoxY() * scale;
+
+        GeometryCache cache = GeometryCache.getInstance();
+        GeometryCache.Viewport viewport = cache.get(resource, width, height);
+        if (viewport == null) {
+            int level = MapLevels.getLevel(MapLevels.TOLERANCE_DIP * density / scale);
+            viewport = createViewport(levels.getPaths(level), scale, dx, dy);
+            cache.put(resource, width, height, viewport);
+        }
+
+        final int count = viewport.polylines.length;
+        List<SvgPath> paths = new ArrayList<SvgPath>(count);
+        for (int i = 0; i < count; i++) {
+            paths.add(new SvgPath(viewport.polylines[i], new Paint(mSourcePaint),
+                    viewport.bounds[i]));
+        }
+
+        return new PathSet(paths, batched);
+    }
+
+    private static GeometryCache.Viewport createViewport(Polyline[] paths,
+            float scale, float dx, float dy) {
+        final int count = paths.length;
+        Polyline[] polylines = new Polyline[count];
+        Rect[] bounds = new Rect[count];
+
+        for (int i = 0; i < count; i++) {
+            Polyline path = paths[i];
+            float[] points = new float[path.pointCount * 2];
+            for (int j = 0; j < points.length; j += 2) {
+                points[j] = path.points[j] * scale + dx;
+                points[j + 1] = path.points[j + 1] * scale + dy;
+            }
+            polylines[i] = path.scaled(points, scale);
+            bounds[i] = computeBounds(polylines[i]);
+        }
+
+        return new GeometryCache.Viewport(polylines, bounds, scale, dx, dy);
+    }
+
+    private static Rect computeBounds(Polyline polyline) {
+        if (polyline.pointCount == 0) return new Rect();
+
+        final float[] points = polyline.points;
+        float left = points[0];
+        float top = points[1];
+        float right = left;
+        float bottom = top;
+
+        for (int i = 2; i < polyline.pointCount * 2; i += 2) {
+            left = Math.min(left, points[i]);
+            right = Math.max(right, points[i]);
+            top = Math.min(top, points[i + 1]);
+            bottom = Math.max(bottom, points[i + 1]);
+        }
 
-        return mPaths;
+        Rect bounds = new Rect();
+        new RectF(left, top, right, bottom).roundOut(bounds);
+        return bounds;
     }
 }
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming reader for the SVG documents used as maps. The document is scanned
+ * once, without building a DOM: only the viewBox of the root element and the
+ * geometry of &lt;path&gt;, &lt;polygon&gt; and &lt;polyline&gt; elements are
+ * extracted, in document order. Transforms, styles and other elements are
+ * ignored, which matches how the maps are exported.
+ *
+ * This class must not depend on the Android framework: it is also compiled
+ * into the build script to generate the compiled maps (see buildSrc/).
+ */
+public final class SvgMapReader {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader mReader;
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private int mPosition;
+    private int mLimit;
+
+    private final StringBuilder mName = new StringBuilder(16);
+    private final StringBuilder mAttributeName = new StringBuilder(16);
+    private final StringBuilder mValue = new StringBuilder(1024);
+
+    private SvgMapReader(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Reads the specified SVG document. The reader is not closed.
+     */
+    public static MapGeometry read(Reader reader) throws IOException {
+        MapGeometry.Builder builder = new MapGeometry.Builder();
+        new SvgMapReader(reader).read(builder);
+        return builder.build();
+    }
+
+    private void read(MapGeometry.Builder builder) throws IOException {
+        int c;
+        while ((c = next()) != -1) {
+            if (c != '<') continue;
+
+            c = next();
+            if (c == '!') {
+                skipDeclaration();
+            } else if (c == '?') {
+                skipPast("?>");
+            } else if (c == '/') {
+                skipPast(">");
+            } else if (c != -1) {
+                readElement(c, builder);
+            }
+        }
+    }
+
+    private void readElement(int first, MapGeometry.Builder builder) throws IOException {
+        mName.setLength(0);
+        int c = first;
+        while (c != -1 && !isWhitespace(c) && c != '>' && c != '/') {
+            mName.append((char) c);
+            c = next();
+        }
+
+        final String wanted;
+        if (equals(mName, "svg")) {
+            wanted = "viewBox";
+        } else if (equals(mName, "path")) {
+            wanted = "d";
+        } else if (equals(mName, "polygon") || equals(mName, "polyline")) {
+            wanted = "points";
+        } else {
+            wanted = null;
+        }
+
+        boolean found = false;
+        while (c != -1 && c != '>') {
+            if (isWhitespace(c) || c == '/') {
+                c = next();
+                continue;
+            }
+
+            mAttributeName.setLength(0);
+            while (c != -1 && c != '=' && !isWhitespace(c) && c != '>' && c != '/') {
+                mAttributeName.append((char) c);
+                c = next();
+            }
+            while (c != -1 && isWhitespace(c)) c = next();
+            if (c != '=') continue;
+
+            c = next();
+            while (c != -1 && isWhitespace(c)) c = next();
+            if (c != '"' && c != '\'') {
+                throw new IOException("Malformed attribute " + mAttributeName + " in <" + mName + ">");
+            }
+
+            boolean keep = !found && wanted != null && equals(mAttributeName, wanted);
+            readValue(c, keep);
+            found |= keep;
+            c = next();
+        }
+
+        if (!found) return;
+
+        if (equals(mName, "svg")) {
+            readViewBox(builder);
+        } else if (equals(mName, "path")) {
+            SvgPathParser.parsePathData(mValue, builder);
+            builder.endPath();
+        } else {
+            SvgPathParser.parsePoints(mValue, equals(mName, "polygon"), builder);
+            builder.endPath();
+        }
+    }
+
+    private void readViewBox(MapGeometry.Builder builder) throws IOException {
+        String[] box = mValue.toString().trim().split("[\\s,]+");
+        if (box.length != 4) throw new IOException("Malformed viewBox: " + mValue);
+        builder.setViewBox(Float.parseFloat(box[0]), Float.parseFloat(box[1]),
+                Float.parseFloat(box[2]), Float.parseFloat(box[3]));
+    }
+
+    private void readValue(int quote, boolean keep) throws IOException {
+        if (keep) mValue.setLength(0);
+        int c;
+        while ((c = next()) != -1 && c != quote) {
+            if (keep) mValue.append((char) c);
+        }
+    }
+
+    /**
+     * Skips comments, CDATA sections and DOCTYPE declarations.
+     */
+    private void skipDeclaration() throws IOException {
+        int c = next();
+        if (c == '-') {
+            next();
+            skipPast("-->");
+        } else if (c == '[') {
+            skipPast("]]>");
+        } else {
+            int depth = 0;
+            int quote = 0;
+            while (c != -1) {
+                if (quote != 0) {
+                    if (c == quote) quote = 0;
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '[') {
+                    depth++;
+                } else if (c == ']') {
+                    depth--;
+                } else if (c == '>' && depth <= 0) {
+                    break;
+                }
+                c = next();
+            }
+        }
+    }
+
+    private void skipPast(String terminator) throws IOException {
+        final int length = terminator.length();
+        int matched = 0;
+        int c;
+        while ((c = next()) != -1) {
+            if (c == terminator.charAt(matched)) {
+                if (++matched == length) return;
+            } else {
+                matched = c == terminator.charAt(0) ? 1 : 0;
+            }
+        }
+    }
+
+    private int next() throws IOException {
+        if (mPosition == mLimit) {
+            mLimit = mReader.read(mBuffer, 0, mBuffer.length);
+            mPosition = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return -1;
+            }
+        }
+        return mBuffer[mPosition++];
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    private static boolean equals(StringBuilder builder, String s) {
+        final int length = s.length();
+        if (builder.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (builder.charAt(i) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+/**
+ * Parses the subset of SVG path data used by our maps: the content of the
+ * "d" attribute of &lt;path&gt; elements and the "points" attribute of
+ * &lt;polygon&gt; and &lt;polyline&gt; elements.
+ *
+ * Every command is converted to absolute coordinates, H/V become lines and
+ * the smooth curve commands (S/T) are expanded using the reflected control
+ * point, so sinks only have to deal with move/line/quad/cubic/close.
+ *
+ * This class must not depend on the Android framework: it is also compiled
+ * into the build script to generate the compiled maps (see buildSrc/).
+ */
+public final class SvgPathParser {
+    public interface PathSink {
+        void moveTo(float x, float y);
+        void lineTo(float x, float y);
+        void quadTo(float x1, float y1, float x2, float y2);
+        void cubicTo(float x1, float y1, float x2, float y2, float x3, float y3);
+        void close();
+    }
+
+    private final CharSequence mData;
+    private final int mLength;
+    private int mIndex;
+
+    private SvgPathParser(CharSequence data) {
+        mData = data;
+        mLength = data.length();
+    }
+
+    public static void parsePathData(CharSequence d, PathSink sink) {
+        new SvgPathParser(d).parsePathData(sink);
+    }
+
+    public static void parsePoints(CharSequence points, boolean close, PathSink sink) {
+        new SvgPathParser(points).parsePoints(close, sink);
+    }
+
+    private void parsePoints(boolean close, PathSink sink) {
+        boolean first = true;
+        while (hasNumber()) {
+            float x = nextFloat();
+            float y = nextFloat();
+            if (first) {
+                sink.moveTo(x, y);
+                first = false;
+            } else {
+                sink.lineTo(x, y);
+            }
+        }
+        if (close && !first) sink.close();
+    }
+
+    private void parsePathData(PathSink sink) {
+        float x = 0.0f;
+        float y = 0.0f;
+        float startX = 0.0f;
+        float startY = 0.0f;
+        // Last control point, used to reflect smooth curves
+        float controlX = 0.0f;
+        float controlY = 0.0f;
+
+        char command = 0;
+        char previous = 0;
+
+        skipSeparators();
+        while (mIndex < mLength) {
+            char c = mData.charAt(mIndex);
+            if (isCommand(c)) {
+                command = c;
+                mIndex++;
+            } else if (command == 0) {
+                throw new IllegalArgumentException("Path data must start with a command: " + c);
+            } else if (command == 'M') {
+                // Coordinates following a moveto are implicit linetos
+                command = 'L';
+            } else if (command == 'm') {
+                command = 'l';
+            } else if (command == 'z' || command == 'Z') {
+                throw new IllegalArgumentException("Unexpected coordinates after closepath");
+            }
+
+            final boolean relative = Character.isLowerCase(command);
+            final float ox = relative ? x : 0.0f;
+            final float oy = relative ? y : 0.0f;
+
+            switch (command) {
+                case 'M':
+                case 'm':
+                    x = ox + nextFloat();
+                    y = oy + nextFloat();
+                    startX = x;
+                    startY = y;
+                    sink.moveTo(x, y);
+                    break;
+                case 'L':
+                case 'l':
+                    x = ox + nextFloat();
+                    y = oy + nextFloat();
+                    sink.lineTo(x, y);
+                    break;
+                case 'H':
+                case 'h':
+                    x = ox + nextFloat();
+                    sink.lineTo(x, y);
+                    break;
+                case 'V':
+                case 'v':
+                    y = oy + nextFloat();
+                    sink.lineTo(x, y);
+                    break;
+                case 'C':
+                case 'c': {
+                    float x1 = ox + nextFloat();
+                    float y1 = oy + nextFloat();
+                    controlX = ox + nextFloat();
+                    controlY = oy + nextFloat();
+                    x = ox + nextFloat();
+                    y = oy + nextFloat();
+                    sink.cubicTo(x1, y1, controlX, controlY, x, y);
+                    break;
+                }
+                case 'S':
+                case 's': {
+                    float x1 = x;
+                    float y1 = y;
+                    if (isCubic(previous)) {
+                        x1 = 2.0f * x - controlX;
+                        y1 = 2.0f * y - controlY;
+                    }
+                    controlX = ox + nextFloat();
+                    controlY = oy + nextFloat();
+                    x = ox + nextFloat();
+                    y = oy + nextFloat();
+                    sink.cubicTo(x1, y1, controlX, controlY, x, y);
+                    break;
+                }
+                case 'Q':
+                case 'q':
+                    controlX = ox + nextFloat();
+                    controlY = oy + nextFloat();
+                    x = ox + nextFloat();
+                    y = oy + nextFloat();
+                    sink.quadTo(controlX, controlY, x, y);
+                    break;
+                case 'T':
+                case 't':
+                    if (isQuad(previous)) {
+                        controlX = 2.0f * x - controlX;
+                        controlY = 2.0f * y - controlY;
+                    } else {
+                        controlX = x;
+                        controlY = y;
+                    }
+                    x = ox + nextFloat();
+                    y = oy + nextFloat();
+                    sink.quadTo(controlX, controlY, x, y);
+                    break;
+                case 'Z':
+                case 'z':
+                    x = startX;
+                    y = startY;
+                    sink.close();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported path command: " + command);
+            }
+
+            previous = command;
+            skipSeparators();
+        }
+    }
+
+    private static boolean isCommand(char c) {
+        switch (c) {
+            case 'M': case 'm': case 'L': case 'l': case 'H': case 'h': case 'V': case 'v':
+            case 'C': case 'c': case 'S': case 's': case 'Q': case 'q': case 'T': case 't':
+            case 'Z': case 'z':
+                return true;
+            case 'A': case 'a':
+                throw new IllegalArgumentException("Arcs are not supported");
+        }
+        return false;
+    }
+
+    private static boolean isCubic(char command) {
+        return command == 'C' || command == 'c' || command == 'S' || command == 's';
+    }
+
+    private static boolean isQuad(char command) {
+        return command == 'Q' || command == 'q' || command == 'T' || command == 't';
+    }
+
+    private void skipSeparators() {
+        while (mIndex < mLength) {
+            char c = mData.charAt(mIndex);
+            if (c != ',' && !Character.isWhitespace(c)) break;
+            mIndex++;
+        }
+    }
+
+    private boolean hasNumber() {
+        skipSeparators();
+        return mIndex < mLength;
+    }
+
+    /**
+     * Reads the next number. Numbers can be separated by whitespace, a comma,
+     * a sign ("1-2") or a second decimal point ("1.5.5" is 1.5 followed by 0.5).
+     */
+    private float nextFloat() {
+        skipSeparators();
+        final int start = mIndex;
+
+        int i = mIndex;
+        if (i < mLength && (mData.charAt(i) == '-' || mData.charAt(i) == '+')) i++;
+
+        boolean seenDot = false;
+        boolean seenDigit = false;
+        while (i < mLength) {
+            char c = mData.charAt(i);
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+            } else if (c == '.' && !seenDot) {
+                seenDot = true;
+            } else if ((c == 'e' || c == 'E') && seenDigit) {
+                int j = i + 1;
+                if (j < mLength && (mData.charAt(j) == '-' || mData.charAt(j) == '+')) j++;
+                if (j < mLength && Character.isDigit(mData.charAt(j))) {
+                    i = j;
+                    while (i < mLength && Character.isDigit(mData.charAt(i))) i++;
+                }
+                break;
+            } else {
+                break;
+            }
+            i++;
+        }
+
+        if (!seenDigit) {
+            throw new IllegalArgumentException("Expected a number at index " + start);
+        }
+
+        mIndex = i;
+        return Float.parseFloat(mData.subSequence(start, i).toString());
+    }
+}
@@ -26,6 +26,7 @@ public class TrackingHorizontalScrollView extends HorizontalScrollView {
     }
 
     private OnScrollChangedListener mOnScrollChangedListener;
+    private int mPendingScrollX = -1;
 
     public TrackingHorizontalScrollView(Context context, AttributeSet attrs) {
         this(context, attrs, 0);
@@ -39,6 +40,25 @@ public class TrackingHorizontalScrollView extends HorizontalScrollView {
         mOnScrollChangedListener = listener;
     }
 
+    /**
+     * Scrolls to the specified position once the content is laid out. Used
+     * when the content changes, since scrollTo() clamps to the current content.
+     */
+    public void setScrollXOnLayout(int x) {
+        mPendingScrollX = x;
+        requestLayout();
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        super.onLayout(changed, l, t, r, b);
+
+        if (mPendingScrollX >= 0) {
+            scrollTo(mPendingScrollX, getScrollY());
+            mPendingScrollX = -1;
+        }
+    }
+
     @Override
     protected void onScrollChanged(int l, int t, int oldl, int oldt) {
         super.onScrollChanged(l, t, oldl, oldt);
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the states of a trip, in scroll order. The manifest is compiled
+ * at build time from src/main/trips/*.txt and read in place: records are
+ * fixed size and addressed by position, so only the records of the states
+ * actually displayed are ever read. Resources are referenced by name.
+ *
+ * <pre>
+ * int      magic ('RTTM')
+ * int      version
+ * int      state count
+ * int      offset of the photo table
+ * int      offset of the string table
+ * for each state:
+ *     int      background color (string index)
+ *     int      map raw resource (string index)
+ *     int      index of the first photo in the photo table
+ *     int      photo count
+ * photo table:
+ *     int[]    photo drawable resources (string indices)
+ * string table:
+ *     int      string count
+ *     int[]    string offsets
+ *     for each string:
+ *         short    length in bytes
+ *         byte[]   UTF-8 characters
+ * </pre>
+ *
+ * Offsets are relative to the beginning of the manifest and all values are
+ * big endian. This class must not depend on the Android framework: it is
+ * also compiled into the build script (see buildSrc/).
+ */
+public final class TripManifest {
+    public static final int MAGIC = 0x5254544d;
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 20;
+    private static final int STATE_RECORD_SIZE = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mBuffer;
+    private final int mStateCount;
+    private final int mPhotoTableOffset;
+    private final int mStringCount;
+    private final int mStringOffsetsOffset;
+
+    // Strings are decoded the first time they are requested
+    private final String[] mStrings;
+
+    private TripManifest(ByteBuffer buffer, int stateCount, int photoTableOffset,
+            int stringCount, int stringOffsetsOffset) {
+        mBuffer = buffer;
+        mStateCount = stateCount;
+        mPhotoTableOffset = photoTableOffset;
+        mStringCount = stringCount;
+        mStringOffsetsOffset = stringOffsetsOffset;
+        mStrings = new String[stringCount];
+    }
+
+    /**
+     * Reads the header of the specified manifest. The buffer is used in place
+     * and must not be modified; only absolute reads are performed on it.
+     */
+    public static TripManifest wrap(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a trip manifest");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported trip manifest version: " + version);
+        }
+
+        int stateCount = buffer.getInt(8);
+        int photoTableOffset = buffer.getInt(12);
+        int stringTableOffset = buffer.getInt(16);
+        if (stateCount < 0 ||
+                photoTableOffset != HEADER_SIZE + stateCount * STATE_RECORD_SIZE ||
+                stringTableOffset < photoTableOffset ||
+                stringTableOffset + 4 > buffer.limit()) {
+            throw new IOException("Corrupted trip manifest");
+        }
+
+        int stringCount = buffer.getInt(stringTableOffset);
+        if (stringCount < 0 || stringTableOffset + 4 + stringCount * 4 > buffer.limit()) {
+            throw new IOException("Corrupted trip manifest");
+        }
+
+        return new TripManifest(buffer, stateCount, photoTableOffset,
+                stringCount, stringTableOffset + 4);
+    }
+
+    public int getStateCount() {
+        return mStateCount;
+    }
+
+    public String getBackground(int state) {
+        return getString(mBuffer.getInt(stateOffset(state)));
+    }
+
+    public String getMap(int state) {
+        return getString(mBuffer.getInt(stateOffset(state) + 4));
+    }
+
+    public int getPhotoCount(int state) {
+        return mBuffer.getInt(stateOffset(state) + 12);
+    }
+
+    public String getPhoto(int state, int index) {
+        final int offset = stateOffset(state);
+        if (index < 0 || index >= mBuffer.getInt(offset + 12)) {
+            throw new IndexOutOfBoundsException("Photo " + index + " of state " + state);
+        }
+        int photo = mBuffer.getInt(offset + 8) + index;
+        return getString(mBuffer.getInt(mPhotoTableOffset + photo * 4));
+    }
+
+    private int stateOffset(int state) {
+        if (state < 0 || state >= mStateCount) {
+            throw new IndexOutOfBoundsException("State " + state + " of " + mStateCount);
+        }
+        return HEADER_SIZE + state * STATE_RECORD_SIZE;
+    }
+
+    private synchronized String getString(int index) {
+        if (index < 0 || index >= mStringCount) {
+            throw new IndexOutOfBoundsException("String " + index + " of " + mStringCount);
+        }
+
+        String string = mStrings[index];
+        if (string == null) {
+            int offset = mBuffer.getInt(mStringOffsetsOffset + index * 4);
+            byte[] data = new byte[mBuffer.getShort(offset) & 0xffff];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = mBuffer.get(offset + 2 + i);
+            }
+            string = new String(data, UTF_8);
+            mStrings[index] = string;
+        }
+        return string;
+    }
+
+    /**
+     * Collects the states of a trip and writes them in the manifest format.
+     */
+    public static final class Builder {
+        private final List<int[]> mStates = new ArrayList<int[]>();
+        private final List<Integer> mPhotos = new ArrayList<Integer>();
+        private final List<String> mStrings = new ArrayList<String>();
+        private final Map<String, Integer> mStringIndices = new HashMap<String, Integer>();
+
+        public Builder addState(String background, String map, List<String> photos) {
+            mStates.add(new int[] { string(background), string(map), mPhotos.size(), photos.size() });
+            for (String photo : photos) {
+                mPhotos.add(string(photo));
+            }
+            return this;
+        }
+
+        public int getStateCount() {
+            return mStates.size();
+        }
+
+        private int string(String s) {
+            Integer index = mStringIndices.get(s);
+            if (index == null) {
+                index = mStrings.size();
+                mStrings.add(s);
+                mStringIndices.put(s, index);
+            }
+            return index;
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            final int photoTableOffset = HEADER_SIZE + mStates.size() * STATE_RECORD_SIZE;
+            final int stringTableOffset = photoTableOffset + mPhotos.size() * 4;
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mStates.size());
+            out.writeInt(photoTableOffset);
+            out.writeInt(stringTableOffset);
+
+            for (int[] state : mStates) {
+                for (int value : state) {
+                    out.writeInt(value);
+                }
+            }
+
+            for (int photo : mPhotos) {
+                out.writeInt(photo);
+            }
+
+            List<byte[]> strings = new ArrayList<byte[]>(mStrings.size());
+            for (String s : mStrings) {
+                byte[] data = s.getBytes(UTF_8);
+                if (data.length > 0xffff) throw new IOException("String too long: " + s);
+                strings.add(data);
+            }
+
+            out.writeInt(strings.size());
+            int offset = stringTableOffset + 4 + strings.size() * 4;
+            for (byte[] data : strings) {
+                out.writeInt(offset);
+                offset += 2 + data.length;
+            }
+            for (byte[] data : strings) {
+                out.writeShort(data.length);
+                out.write(data);
+            }
+        }
+    }
+}
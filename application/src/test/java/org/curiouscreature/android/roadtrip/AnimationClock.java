@@ -0,0 +1,88 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.animation.ValueAnimator;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ReflectionHelpers;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Runs the animators of the UI thread one frame at a time, on the clock of
+ * the main looper. Robolectric runs animation frames back to back on a clock
+ * of its own, unrelated to SystemClock: a running animator would complete
+ * within a single turn of the main looper, and play times would not match
+ * the frame times.
+ *
+ * The main looper is paused: posted tasks only run when the clock advances.
+ */
+final class AnimationClock {
+    static final long FRAME_TIME_MS = 16;
+
+    private final Object mAnimationHandler;
+
+    AnimationClock() {
+        ShadowLooper.pauseMainLooper();
+
+        mAnimationHandler = ReflectionHelpers.callStaticMethod(ValueAnimator.class,
+                "getOrCreateAnimationHandler");
+        // The animators request their frames from the choreographer, these
+        // requests are dropped and the frames are run by frame() instead
+        Choreographer choreographer = ReflectionHelpers.getField(mAnimationHandler, "mChoreographer");
+        ReflectionHelpers.setField(shadowOf(choreographer), "handler",
+                new Handler(Looper.getMainLooper()) {
+                    @Override
+                    public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+                        if (msg.getCallback() == mAnimationHandler) return true;
+                        return super.sendMessageAtTime(msg, uptimeMillis);
+                    }
+                });
+    }
+
+    /**
+     * Advances the clock by one frame.
+     */
+    void frame() {
+        advance(FRAME_TIME_MS);
+    }
+
+    /**
+     * Advances the clock by the specified duration, runs the tasks posted
+     * until then, then runs one frame of the animators.
+     */
+    void advance(long duration) {
+        Robolectric.getForegroundThreadScheduler().advanceBy(duration);
+        ReflectionHelpers.callInstanceMethod(mAnimationHandler, "doAnimationFrame",
+                ReflectionHelpers.ClassParameter.from(long.class, SystemClock.uptimeMillis()));
+    }
+
+    /**
+     * Advances the clock frame by frame for the specified duration.
+     */
+    void run(long duration) {
+        for (long time = 0; time < duration; time += FRAME_TIME_MS) {
+            frame();
+        }
+    }
+}
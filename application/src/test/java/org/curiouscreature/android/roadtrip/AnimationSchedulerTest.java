@@ -0,0 +1,128 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.content.Context;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Detaches and attaches again views whose animators are running, and checks
+ * that the animators are parked while the views are detached and resume at
+ * the same phase once the views are attached again.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, qualifiers = "xhdpi")
+public class AnimationSchedulerTest {
+    // Default duration of the animations of the views
+    private static final long DURATION_MS = 4000;
+    private static final long DETACHED_MS = 1500;
+
+    /**
+     * Records the lowest phase set after a call to {@link #startRecording()}.
+     */
+    public static class RecordingStateView extends StateView {
+        private boolean mRecording;
+        private float mMinPhase;
+
+        public RecordingStateView(Context context) {
+            super(context, null);
+        }
+
+        void startRecording() {
+            mRecording = true;
+            mMinPhase = Float.MAX_VALUE;
+        }
+
+        float getMinPhase() {
+            return mMinPhase;
+        }
+
+        @Override
+        public void setPhase(float phase) {
+            if (mRecording) mMinPhase = Math.min(mMinPhase, phase);
+            super.setPhase(phase);
+        }
+    }
+
+    @Test
+    public void revealResumesAtSamePhase() {
+        AnimationClock clock = new AnimationClock();
+        FrameLayout root = new FrameLayout(RuntimeEnvironment.application);
+        RecordingStateView view = new RecordingStateView(RuntimeEnvironment.application);
+        root.addView(view, new FrameLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 400));
+        TestWindow.show(root);
+
+        view.reveal(view, view.getHeight());
+        clock.run(DURATION_MS / 4);
+        final float phase = view.getPhase();
+        assertTrue("Phase " + phase + " after a quarter of the reveal", phase > 0.0f && phase < 1.0f);
+
+        root.removeView(view);
+        clock.run(DETACHED_MS);
+        assertEquals("Phase while detached", phase, view.getPhase(), 0.0f);
+
+        view.startRecording();
+        root.addView(view);
+        clock.frame();
+        assertEquals("Phase once attached again", phase, view.getPhase(), 0.05f);
+        assertTrue("Phase went back to " + view.getMinPhase() + " from " + phase,
+                view.getMinPhase() >= phase);
+
+        // The time spent detached does not count
+        clock.run(DURATION_MS * 3 / 4 - 2 * AnimationClock.FRAME_TIME_MS);
+        assertTrue("Phase " + view.getPhase() + " before the end", view.getPhase() < 1.0f);
+        clock.run(3 * AnimationClock.FRAME_TIME_MS);
+        assertEquals("Phase at the end", 1.0f, view.getPhase(), 0.0f);
+    }
+
+    @Test
+    public void waitResumesAtSamePhase() {
+        AnimationClock clock = new AnimationClock();
+        FrameLayout root = new FrameLayout(RuntimeEnvironment.application);
+        IntroView view = new IntroView(RuntimeEnvironment.application, null);
+        view.setSvgResource(R.raw.map_usa);
+        root.addView(view, new FrameLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+                ViewGroup.LayoutParams.MATCH_PARENT));
+        TestWindow.show(root);
+
+        // The wait animation starts once the view is visible
+        clock.run(DURATION_MS * 3 / 2);
+        final float wait = view.getWait();
+        assertTrue("Wait " + wait + " in the middle of the second cycle", wait > 0.0f && wait < 1.0f);
+
+        root.removeView(view);
+        clock.run(DETACHED_MS);
+        assertEquals("Wait while detached", wait, view.getWait(), 0.0f);
+
+        root.addView(view);
+        clock.frame();
+        assertEquals("Wait once attached again", wait, view.getWait(), 0.05f);
+
+        clock.run(DURATION_MS / 4);
+        assertTrue("Wait " + view.getWait() + " does not run once attached again",
+                view.getWait() < wait);
+    }
+}
@@ -0,0 +1,408 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Draws IntroView and StateView, inflated from their layouts and shown in a
+ * window, through their animations. The animators of the views run on a
+ * controlled clock, advanced by a fixed step before each frame; the views
+ * are drawn after every step. The parallax transition, driven by scrolling,
+ * is stepped by the test instead. Each scenario records the draw calls, the
+ * points drawn as lines and the bytes allocated per frame, and fails when a
+ * result is above the checked-in baseline (render_baselines.properties).
+ *
+ * Draw calls and points are exact. Allocations are measured on the host JVM
+ * and include the cost of the Robolectric framework: they are compared with
+ * a tolerance and a margin, also set in the baselines. The time per frame
+ * depends on the machine and its load, it is only reported. After an
+ * intended change, record new baselines with:
+ *
+ * <pre>
+ * ./gradlew :application:testDebug -PupdateBaselines
+ * </pre>
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, qualifiers = "xhdpi")
+public class RenderRegressionTest {
+    private static final String BASELINES = "render_baselines.properties";
+    // Path of the baselines to record, set by -PupdateBaselines
+    private static final String UPDATE_PROPERTY = "roadtrip.updateBaselines";
+
+    private static final long LOAD_TIMEOUT_MS = 10000;
+
+    // Durations set in the layouts
+    private static final long INTRO_DURATION_MS = 4000;
+    private static final long STATE_DURATION_MS = 2000;
+    // Default duration of the animators, used to fade the wait indicator out
+    private static final long FADE_DURATION_MS = 300;
+    // Duration of the transitions driven by scrolling
+    private static final long SCROLL_DURATION_MS = 500;
+
+    private static final Properties sResults = new Properties();
+
+    private static final String[] EXACT_METRICS = { "drawCalls", "linePoints" };
+    private static final String[] MEASURED_METRICS = { "bytesPerFrame" };
+
+    private static abstract class Scenario {
+        /**
+         * Shows a new view, waits for its map and starts the animation.
+         */
+        abstract View start(AnimationClock clock) throws InterruptedException;
+
+        /**
+         * Sets the properties that no animator drives, before each frame.
+         */
+        void step(float fraction) {
+        }
+    }
+
+    private static final class Result {
+        long frames;
+        long drawCalls;
+        long linePoints;
+        long bytes;
+        long nanos;
+    }
+
+    /**
+     * Counts the draw calls and the layers made by the views instead of drawing.
+     */
+    private static final class CountingCanvas extends Canvas {
+        long drawCalls;
+        long linePoints;
+
+        @Override
+        public void drawPath(Path path, Paint paint) {
+            drawCalls++;
+        }
+
+        @Override
+        public void drawLines(float[] pts, int offset, int count, Paint paint) {
+            drawCalls++;
+            linePoints += count / 2;
+        }
+
+        @Override
+        public void drawLines(float[] pts, Paint paint) {
+            drawLines(pts, 0, pts.length, paint);
+        }
+
+        @Override
+        public int saveLayerAlpha(float left, float top, float right, float bottom,
+                int alpha, int saveFlags) {
+            // Offscreen layers cost at least as much as a draw call
+            drawCalls++;
+            return super.saveLayerAlpha(left, top, right, bottom, alpha, saveFlags);
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+            drawCalls++;
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+            drawCalls++;
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, Rect src, RectF dst, Paint paint) {
+            drawCalls++;
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, Matrix matrix, Paint paint) {
+            drawCalls++;
+        }
+    }
+
+    @Test
+    public void introPhase() throws Exception {
+        run("intro.phase", INTRO_DURATION_MS, new Scenario() {
+            @Override
+            View start(AnimationClock clock) throws InterruptedException {
+                // The map is revealed once loaded, along with the wait indicator
+                return showIntro();
+            }
+        });
+    }
+
+    @Test
+    public void introWait() throws Exception {
+        run("intro.wait", INTRO_DURATION_MS, new Scenario() {
+            @Override
+            View start(AnimationClock clock) throws InterruptedException {
+                // The wait indicator keeps running once the map is revealed
+                IntroView view = showIntro();
+                play(clock, view, INTRO_DURATION_MS, this);
+                return view;
+            }
+        });
+    }
+
+    @Test
+    public void introDrag() throws Exception {
+        run("intro.drag", FADE_DURATION_MS + INTRO_DURATION_MS / 3, new Scenario() {
+            @Override
+            View start(AnimationClock clock) throws InterruptedException {
+                IntroView view = showIntro();
+                play(clock, view, INTRO_DURATION_MS, this);
+                view.stopWaitAnimation();
+                return view;
+            }
+        });
+    }
+
+    @Test
+    public void statePhase() throws Exception {
+        run("state.phase", STATE_DURATION_MS, new Scenario() {
+            @Override
+            View start(AnimationClock clock) throws InterruptedException {
+                StateView view = showState();
+                view.reveal(view, view.getHeight());
+                return view;
+            }
+        });
+    }
+
+    @Test
+    public void stateParallax() throws Exception {
+        run("state.parallax", SCROLL_DURATION_MS, new Scenario() {
+            private StateView mView;
+
+            @Override
+            View start(AnimationClock clock) throws InterruptedException {
+                mView = showState();
+                mView.setRevealed(true);
+                // Drawn once before scrolling, like a row already on screen
+                play(clock, mView, 0, this);
+                return mView;
+            }
+
+            @Override
+            void step(float fraction) {
+                mView.setParallax(1.0f - fraction);
+            }
+        });
+    }
+
+    private static IntroView showIntro() throws InterruptedException {
+        FrameLayout root = new FrameLayout(RuntimeEnvironment.application);
+        LayoutInflater.from(RuntimeEnvironment.application).inflate(R.layout.activity_main, root, true);
+        IntroView view = (IntroView) root.findViewById(R.id.intro);
+        view.setSvgResource(R.raw.map_usa);
+
+        final long deadline = show(root);
+        while (view.getLayerDecision() == null) waitForLoad(deadline);
+        return view;
+    }
+
+    private static StateView showState() throws InterruptedException {
+        FrameLayout root = new FrameLayout(RuntimeEnvironment.application);
+        LayoutInflater.from(RuntimeEnvironment.application).inflate(R.layout.item_state, root, true);
+        StateView view = (StateView) root.findViewById(R.id.state);
+        view.setSvgResource(R.raw.map_ca);
+
+        final long deadline = show(root);
+        while (view.getLayerDecision() == null) waitForLoad(deadline);
+        return view;
+    }
+
+    /**
+     * Shows and lays out the views, which starts loading the map. Returns
+     * the time after which the load is considered failed.
+     */
+    private static long show(View root) {
+        TestWindow.show(root);
+        return System.currentTimeMillis() + LOAD_TIMEOUT_MS;
+    }
+
+    /**
+     * Delivers the results of the loader, posted to the main looper. The
+     * clock of the animators does not advance.
+     */
+    private static void waitForLoad(long deadline) throws InterruptedException {
+        if (System.currentTimeMillis() > deadline) {
+            fail("The map was not loaded after " + LOAD_TIMEOUT_MS + "ms");
+        }
+        Thread.sleep(10);
+        ShadowLooper.runUiThreadTasks();
+    }
+
+    private static void run(String name, long duration, Scenario scenario)
+            throws IOException, InterruptedException {
+        final AnimationClock clock = new AnimationClock();
+
+        // The first pass, on a view of its own, warms up the shared caches and the JIT
+        View view = scenario.start(clock);
+        play(clock, view, duration, scenario);
+        // Detaching the view parks its animators, they do not run during the measured pass
+        ((ViewGroup) view.getParent()).removeView(view);
+
+        view = scenario.start(clock);
+        Result result = play(clock, view, duration, scenario);
+        check(name, result);
+    }
+
+    private static Result play(AnimationClock clock, View view, long duration, Scenario scenario) {
+        final CountingCanvas canvas = new CountingCanvas();
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+
+        final Result result = new Result();
+        final long bytes = threads.getThreadAllocatedBytes(thread);
+        final long start = System.nanoTime();
+
+        for (long time = 0; time <= duration; time += AnimationClock.FRAME_TIME_MS) {
+            scenario.step(time / (float) duration);
+            clock.frame();
+            int save = canvas.save();
+            if (view instanceof IntroView) {
+                ((IntroView) view).onDraw(canvas);
+            } else {
+                ((StateView) view).onDraw(canvas);
+            }
+            canvas.restoreToCount(save);
+            result.frames++;
+        }
+
+        result.nanos = System.nanoTime() - start;
+        result.bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+        result.drawCalls = canvas.drawCalls;
+        result.linePoints = canvas.linePoints;
+        return result;
+    }
+
+    private static void check(String name, Result result) throws IOException {
+        final long[] exact = { result.drawCalls, result.linePoints };
+        final long[] measured = { result.bytes / result.frames };
+        System.out.println(name + ": " + result.frames + " frames, " +
+                result.nanos / 1000 / result.frames + "us per frame");
+
+        if (System.getProperty(UPDATE_PROPERTY) != null) {
+            for (int i = 0; i < EXACT_METRICS.length; i++) {
+                sResults.setProperty(name + "." + EXACT_METRICS[i], String.valueOf(exact[i]));
+            }
+            for (int i = 0; i < MEASURED_METRICS.length; i++) {
+                sResults.setProperty(name + "." + MEASURED_METRICS[i], String.valueOf(measured[i]));
+            }
+            return;
+        }
+
+        final Properties baselines = loadBaselines();
+        final StringBuilder failures = new StringBuilder();
+        for (int i = 0; i < EXACT_METRICS.length; i++) {
+            check(baselines, name + "." + EXACT_METRICS[i], exact[i], 1.0f, 0, failures);
+        }
+        for (int i = 0; i < MEASURED_METRICS.length; i++) {
+            // Small values vary the most, a margin is added to the tolerance
+            float tolerance = Float.parseFloat(baselines.getProperty(
+                    "tolerance." + MEASURED_METRICS[i], "1.0"));
+            long margin = Long.parseLong(baselines.getProperty(
+                    "margin." + MEASURED_METRICS[i], "0"));
+            check(baselines, name + "." + MEASURED_METRICS[i], measured[i],
+                    tolerance, margin, failures);
+        }
+        assertTrue(failures.toString(), failures.length() == 0);
+    }
+
+    private static void check(Properties baselines, String key, long value, float tolerance,
+            long margin, StringBuilder failures) {
+        String baseline = baselines.getProperty(key);
+        if (baseline == null) {
+            failures.append("\nNo baseline for ").append(key).append(", measured ").append(value);
+            return;
+        }
+
+        final long limit = (long) (Long.parseLong(baseline) * tolerance) + margin;
+        if (value > limit) {
+            failures.append("\n").append(key).append(": ").append(value)
+                    .append(" above the limit of ").append(limit)
+                    .append(" (baseline ").append(baseline).append(')');
+        }
+    }
+
+    private static Properties loadBaselines() throws IOException {
+        Properties baselines = new Properties();
+        InputStream in = RenderRegressionTest.class.getResourceAsStream(BASELINES);
+        if (in == null) fail("Missing " + BASELINES);
+        try {
+            baselines.load(in);
+        } finally {
+            in.close();
+        }
+        return baselines;
+    }
+
+    /**
+     * Records the results in the baselines file when requested. The
+     * tolerances, the margins and the results of the scenarios that did not
+     * run are kept.
+     */
+    @AfterClass
+    public static void updateBaselines() throws IOException {
+        final String path = System.getProperty(UPDATE_PROPERTY);
+        if (path == null || sResults.isEmpty()) return;
+
+        Properties baselines = loadBaselines();
+        baselines.putAll(sResults);
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(new File(path)), "ISO-8859-1");
+        try {
+            out.write("# Render baselines of RenderRegressionTest, recorded with\n");
+            out.write("# ./gradlew :application:testDebug -PupdateBaselines\n");
+            for (String key : new TreeSet<String>(baselines.stringPropertyNames())) {
+                out.write(key + "=" + baselines.getProperty(key) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
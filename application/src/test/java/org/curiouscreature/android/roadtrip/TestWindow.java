@@ -0,0 +1,57 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import android.app.Activity;
+import android.graphics.Rect;
+import android.view.View;
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ActivityController;
+import org.robolectric.util.ReflectionHelpers;
+
+/**
+ * Shows views in the visible window of an activity, with the size of the
+ * screen of a 720p phone. Robolectric adds the window of the activity but
+ * neither makes it visible nor gives it a size: views in that window are
+ * never considered visible, and their animators never start.
+ */
+final class TestWindow {
+    static final int WIDTH = 720;
+    static final int HEIGHT = 1184;
+
+    private TestWindow() {
+    }
+
+    /**
+     * Sets the specified view as the content of a new activity and lays it out.
+     */
+    static Activity show(View content) {
+        ActivityController<Activity> controller = Robolectric.buildActivity(Activity.class).create();
+        controller.get().setContentView(content);
+        controller.start().resume().visible();
+
+        Object viewRoot = content.getRootView().getParent();
+        ReflectionHelpers.callInstanceMethod(viewRoot, "handleAppVisibility",
+                ReflectionHelpers.ClassParameter.from(boolean.class, true));
+        ReflectionHelpers.<Rect>getField(viewRoot, "mWinFrame").set(0, 0, WIDTH, HEIGHT);
+        content.getRootView().requestLayout();
+        ShadowLooper.runUiThreadTasks();
+
+        return controller.get();
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip.benchmarks;
+
+import org.curiouscreature.android.roadtrip.MapGeometry;
+import org.curiouscreature.android.roadtrip.Polyline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preparing a map for a viewport and revealing it: transforming and
+ * flattening the paths, measuring their lengths, and extracting the
+ * revealed part of every path for a given phase.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GeometryBenchmark {
+    @Param({ "map_usa", "map_ca", "map_az", "map_ut" })
+    public String map;
+
+    /**
+     * Viewport sizes of IntroView on a 720p and a 1080p phone.
+     */
+    @Param({ "688x1000", "1032x1500" })
+    public String viewport;
+
+    @Param({ "0.1", "0.5", "1.0" })
+    public float phase;
+
+    private MapGeometry mGeometry;
+    private int mWidth;
+    private int mHeight;
+    private float[] mTransform;
+    private Polyline[] mLevel;
+    private Polyline[] mPolylines;
+    private float[] mSegment;
+
+    @Setup
+    public void setup() throws IOException {
+        mGeometry = Maps.parse(Maps.read(map));
+
+        int separator = viewport.indexOf('x');
+        mWidth = Integer.parseInt(viewport.substring(0, separator));
+        mHeight = Integer.parseInt(viewport.substring(separator + 1));
+
+        mTransform = Maps.getTransform(mGeometry, mWidth, mHeight);
+        mLevel = Maps.buildLevel(mGeometry, mTransform[0]);
+        mPolylines = Maps.transform(mLevel, mTransform[0], mTransform[1], mTransform[2]);
+
+        int maxPoints = 0;
+        for (Polyline polyline : mPolylines) {
+            maxPoints = Math.max(maxPoints, polyline.pointCount);
+        }
+        mSegment = new float[(maxPoints + 1) * 2];
+    }
+
+    /**
+     * Flattening, simplification and arc-length measurement of all the paths
+     * for a level of detail, then viewport transform, as done the first time
+     * a level of detail is needed.
+     */
+    @Benchmark
+    public Polyline[] flatten() {
+        return Maps.flatten(mGeometry, mWidth, mHeight);
+    }
+
+    /**
+     * Viewport transform of a level of detail already built, as done when
+     * a view is resized.
+     */
+    @Benchmark
+    public Polyline[] transform() {
+        return Maps.transform(mLevel, mTransform[0], mTransform[1], mTransform[2]);
+    }
+
+    /**
+     * Lookup of the last point revealed by the phase, for every path.
+     */
+    @Benchmark
+    public int indexOf() {
+        int sum = 0;
+        for (Polyline polyline : mPolylines) {
+            sum += polyline.indexOf(polyline.length * phase);
+        }
+        return sum;
+    }
+
+    /**
+     * Extraction of the revealed part of every path, including the partial
+     * last segment. Mirrors SvgHelper.SvgPath.setPhase(), with the points
+     * copied to an array instead of a Path.
+     */
+    @Benchmark
+    public int extractSegments() {
+        int sum = 0;
+        for (Polyline polyline : mPolylines) {
+            sum += extractSegment(polyline, polyline.length * phase, mSegment);
+        }
+        return sum;
+    }
+
+    private static int extractSegment(Polyline polyline, float distance, float[] out) {
+        final float[] points = polyline.points;
+        final float[] lengths = polyline.lengths;
+        final int[] contours = polyline.contours;
+
+        final int last = polyline.indexOf(distance);
+        int contour = 0;
+        int moveCount = 0;
+        for (int i = 0; i <= last; i++) {
+            if (contour < contours.length && contours[contour] == i) {
+                moveCount++;
+                contour++;
+            }
+            out[i * 2] = points[i * 2];
+            out[i * 2 + 1] = points[i * 2 + 1];
+        }
+        int count = last + 1;
+
+        final int next = last + 1;
+        if (next < polyline.pointCount &&
+                (contour >= contours.length || contours[contour] != next)) {
+            float t = (distance - lengths[last]) / (lengths[next] - lengths[last]);
+            out[count * 2] = points[last * 2] + (points[next * 2] - points[last * 2]) * t;
+            out[count * 2 + 1] =
+                    points[last * 2 + 1] + (points[next * 2 + 1] - points[last * 2 + 1]) * t;
+            count++;
+        }
+
+        return count + moveCount;
+    }
+}
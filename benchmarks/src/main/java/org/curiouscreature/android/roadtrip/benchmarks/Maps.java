@@ -0,0 +1,120 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip.benchmarks;
+
+import org.curiouscreature.android.roadtrip.MapGeometry;
+import org.curiouscreature.android.roadtrip.MapLevels;
+import org.curiouscreature.android.roadtrip.Polyline;
+import org.curiouscreature.android.roadtrip.SvgMapReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+
+/**
+ * Loads the maps of the application and reproduces the way
+ * SvgHelper.getPathsForViewport() fits them to a viewport: the paths are
+ * built for a level of detail (see MapLevels), then transformed.
+ */
+final class Maps {
+    // Density of an xxhdpi display
+    private static final float DENSITY = 3.0f;
+
+    private Maps() {
+    }
+
+    /**
+     * Returns the content of the specified map, res/raw/<name>.svg.
+     */
+    static String read(String name) throws IOException {
+        InputStream in = Maps.class.getResourceAsStream("/" + name + ".svg");
+        if (in == null) throw new IOException("Map not found: " + name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    static MapGeometry parse(String svg) throws IOException {
+        return SvgMapReader.read(new StringReader(svg));
+    }
+
+    /**
+     * Returns the scale and translation that fit a map to a viewport.
+     */
+    static float[] getTransform(MapGeometry geometry, int width, int height) {
+        float viewBoxWidth = geometry.getViewBoxWidth();
+        float viewBoxHeight = geometry.getViewBoxHeight();
+        float scale = Math.min(width / viewBoxWidth, height / viewBoxHeight);
+
+        float dx = (width - viewBoxWidth * scale) / 2.0f - geometry.getViewBoxX() * scale;
+        float dy = (height - viewBoxHeight * scale) / 2.0f - geometry.getViewBoxY() * scale;
+
+        return new float[] { scale, dx, dy };
+    }
+
+    /**
+     * Returns the level of detail SvgHelper picks for the specified scale.
+     */
+    static int getLevel(float scale) {
+        return MapLevels.getLevel(MapLevels.TOLERANCE_DIP * DENSITY / scale);
+    }
+
+    /**
+     * Flattens and simplifies all the paths of a map, in document
+     * coordinates, for the level of detail required by the specified scale.
+     * The level is built by a new MapLevels every time.
+     */
+    static Polyline[] buildLevel(MapGeometry geometry, float scale) {
+        return new MapLevels(geometry).getPaths(getLevel(scale));
+    }
+
+    /**
+     * Transforms the paths of a level of detail to viewport coordinates.
+     */
+    static Polyline[] transform(Polyline[] paths, float scale, float dx, float dy) {
+        final int count = paths.length;
+        Polyline[] polylines = new Polyline[count];
+        for (int i = 0; i < count; i++) {
+            Polyline path = paths[i];
+            float[] points = new float[path.pointCount * 2];
+            for (int j = 0; j < points.length; j += 2) {
+                points[j] = path.points[j] * scale + dx;
+                points[j + 1] = path.points[j + 1] * scale + dy;
+            }
+            polylines[i] = path.scaled(points, scale);
+        }
+        return polylines;
+    }
+
+    /**
+     * Builds the level of detail of a map required by a viewport and
+     * transforms it to fit the viewport.
+     */
+    static Polyline[] flatten(MapGeometry geometry, int width, int height) {
+        float[] transform = getTransform(geometry, width, height);
+        return transform(buildLevel(geometry, transform[0]), transform[0], transform[1], transform[2]);
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip.benchmarks;
+
+import org.curiouscreature.android.roadtrip.MapGeometry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a map: parsing the SVG document, as done when no compiled map is
+ * available, and reading the compiled map generated at build time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SvgParsingBenchmark {
+    @Param({ "map_usa", "map_ca", "map_az", "map_ut" })
+    public String map;
+
+    private String mSvg;
+    private byte[] mCompiled;
+
+    @Setup
+    public void setup() throws IOException {
+        mSvg = Maps.read(map);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Maps.parse(mSvg).write(new DataOutputStream(out));
+        mCompiled = out.toByteArray();
+    }
+
+    @Benchmark
+    public MapGeometry parseSvg() throws IOException {
+        return Maps.parse(mSvg);
+    }
+
+    @Benchmark
+    public MapGeometry readCompiled() throws IOException {
+        return MapGeometry.read(ByteBuffer.wrap(mCompiled));
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Parses the bundled maps with SvgMapReader and checks the result against
+ * the same documents read with a DOM parser, then against the compiled
+ * form of the geometry. Corrupt compiled maps must be rejected.
+ */
+public class SvgMapReaderTest {
+    private static final String[] MAPS = { "map_usa", "map_ca", "map_az", "map_ut" };
+
+    @Test
+    public void viewBox() throws Exception {
+        for (String map : MAPS) {
+            MapGeometry geometry = read(map);
+            Element svg = parseDocument(map).getDocumentElement();
+
+            String[] box = svg.getAttribute("viewBox").trim().split("[\\s,]+");
+            assertEquals(map, Float.parseFloat(box[0]), geometry.getViewBoxX(), 0.0f);
+            assertEquals(map, Float.parseFloat(box[1]), geometry.getViewBoxY(), 0.0f);
+            assertEquals(map, Float.parseFloat(box[2]), geometry.getViewBoxWidth(), 0.0f);
+            assertEquals(map, Float.parseFloat(box[3]), geometry.getViewBoxHeight(), 0.0f);
+        }
+    }
+
+    @Test
+    public void pathCount() throws Exception {
+        for (String map : MAPS) {
+            MapGeometry geometry = read(map);
+            List<Element> elements = getShapes(parseDocument(map));
+
+            assertTrue(map, geometry.getPathCount() > 0);
+            assertEquals(map, elements.size(), geometry.getPathCount());
+        }
+    }
+
+    @Test
+    public void paths() throws Exception {
+        for (String map : MAPS) {
+            MapGeometry geometry = read(map);
+            List<Element> elements = getShapes(parseDocument(map));
+
+            for (int i = 0; i < geometry.getPathCount(); i++) {
+                final String name = map + " path " + i;
+                final Element element = elements.get(i);
+                final byte[] verbs = geometry.getVerbs(i);
+                final float[] coords = geometry.getCoords(i);
+
+                assertTrue(name, verbs.length > 0);
+                assertEquals(name, MapGeometry.VERB_MOVE, verbs[0]);
+
+                int coordCount = 0;
+                int moveCount = 0;
+                for (byte verb : verbs) {
+                    coordCount += MapGeometry.coordCount(verb);
+                    if (verb == MapGeometry.VERB_MOVE) moveCount++;
+                }
+                assertEquals(name, coordCount, coords.length);
+
+                if (element.getTagName().equals("path")) {
+                    // Every subpath starts with a move
+                    assertEquals(name, countMoves(element.getAttribute("d")), moveCount);
+                } else {
+                    // One point per pair of numbers, polygons are closed
+                    String[] points = element.getAttribute("points").trim().split("[\\s,]+");
+                    assertEquals(name, points.length, coords.length);
+                    assertEquals(name, Float.parseFloat(points[0]), coords[0], 0.0f);
+                    assertEquals(name, Float.parseFloat(points[points.length - 1]),
+                            coords[coords.length - 1], 0.0f);
+                    assertEquals(name, element.getTagName().equals("polygon"),
+                            verbs[verbs.length - 1] == MapGeometry.VERB_CLOSE);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compiled() throws Exception {
+        for (String map : MAPS) {
+            MapGeometry geometry = read(map);
+            MapGeometry compiled = MapGeometry.read(ByteBuffer.wrap(compile(geometry)));
+
+            assertEquals(map, geometry.getViewBoxX(), compiled.getViewBoxX(), 0.0f);
+            assertEquals(map, geometry.getViewBoxY(), compiled.getViewBoxY(), 0.0f);
+            assertEquals(map, geometry.getViewBoxWidth(), compiled.getViewBoxWidth(), 0.0f);
+            assertEquals(map, geometry.getViewBoxHeight(), compiled.getViewBoxHeight(), 0.0f);
+            assertEquals(map, geometry.getPathCount(), compiled.getPathCount());
+            for (int i = 0; i < geometry.getPathCount(); i++) {
+                assertArrayEquals(map, geometry.getVerbs(i), compiled.getVerbs(i));
+                assertArrayEquals(map, geometry.getCoords(i), compiled.getCoords(i), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void corruptCompiled() throws Exception {
+        final byte[] data = compile(read("map_ut"));
+
+        for (int length = 0; length < data.length; length++) {
+            assertCorrupt("Truncated to " + length + " bytes", Arrays.copyOf(data, length));
+        }
+
+        // Offsets of the path count and of the lengths of the first path
+        final int[] offsets = { 24, 28, 32 };
+        final int[] values = { -1, Integer.MAX_VALUE, 1 };
+        for (int offset : offsets) {
+            for (int value : values) {
+                byte[] corrupt = data.clone();
+                ByteBuffer.wrap(corrupt).putInt(offset, value);
+                assertCorrupt(value + " at offset " + offset, corrupt);
+            }
+        }
+
+        // Unknown verb
+        byte[] corrupt = data.clone();
+        corrupt[corrupt.length - 1] = 42;
+        assertCorrupt("Unknown verb", corrupt);
+    }
+
+    private static void assertCorrupt(String message, byte[] data) {
+        try {
+            MapGeometry.read(ByteBuffer.wrap(data));
+            fail(message + ": no IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static byte[] compile(MapGeometry geometry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        geometry.write(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static InputStream open(String map) throws IOException {
+        InputStream in = SvgMapReaderTest.class.getResourceAsStream("/" + map + ".svg");
+        assertNotNull("Map not found: " + map, in);
+        return in;
+    }
+
+    private static MapGeometry read(String map) throws IOException {
+        InputStream in = open(map);
+        try {
+            return SvgMapReader.read(new InputStreamReader(in, "UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Document parseDocument(String map) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        // The maps declare the SVG DTD, do not fetch it
+        factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        DocumentBuilder builder = factory.newDocumentBuilder();
+
+        InputStream in = open(map);
+        try {
+            return builder.parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the elements read by SvgMapReader, in document order.
+     */
+    private static List<Element> getShapes(Document document) {
+        List<Element> shapes = new ArrayList<Element>();
+        NodeList nodes = document.getElementsByTagName("*");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element element = (Element) nodes.item(i);
+            String tag = element.getTagName();
+            if (tag.equals("path") || tag.equals("polygon") || tag.equals("polyline")) {
+                shapes.add(element);
+            }
+        }
+        return shapes;
+    }
+
+    private static int countMoves(String data) {
+        int count = 0;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c == 'M' || c == 'm') count++;
+        }
+        return count;
+    }
+}
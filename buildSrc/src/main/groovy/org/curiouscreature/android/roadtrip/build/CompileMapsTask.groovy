@@ -0,0 +1,59 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip.build
+
+import org.curiouscreature.android.roadtrip.MapGeometry
+import org.curiouscreature.android.roadtrip.SvgMapReader
+import org.gradle.api.GradleException
+import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.SourceTask
+import org.gradle.api.tasks.TaskAction
+
+/**
+ * Compiles SVG maps into the binary format described in MapGeometry. The maps
+ * are parsed with SvgMapReader, the same reader used by the application when
+ * no compiled map is available.
+ */
+class CompileMapsTask extends SourceTask {
+    @OutputDirectory
+    File outputDir
+
+    @TaskAction
+    void compile() {
+        project.delete(outputDir)
+        outputDir.mkdirs()
+
+        for (File svg : source.files) {
+            String name = svg.name.substring(0, svg.name.lastIndexOf('.'))
+            File output = new File(outputDir, name + '.bin')
+
+            MapGeometry geometry
+            try {
+                geometry = parse(svg)
+            } catch (Exception e) {
+                throw new GradleException("Could not compile map ${svg}", e)
+            }
+
+            output.withDataOutputStream { out -> geometry.write(out) }
+            logger.info("Compiled ${svg.name}: ${geometry.pathCount} paths, ${output.length()} bytes")
+        }
+    }
+
+    static MapGeometry parse(File svg) {
+        return svg.withReader('UTF-8') { reader -> SvgMapReader.read(reader) }
+    }
+}
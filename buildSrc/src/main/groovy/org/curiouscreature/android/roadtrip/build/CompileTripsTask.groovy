@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013 Romain Guy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.curiouscreature.android.roadtrip.build
+
+import org.curiouscreature.android.roadtrip.TripManifest
+import org.gradle.api.GradleException
+import org.gradle.api.tasks.InputDirectory
+import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.SourceTask
+import org.gradle.api.tasks.TaskAction
+
+/**
+ * Compiles text trip descriptions into the binary manifest format described
+ * in TripManifest. Each non-empty line that is not a comment describes a
+ * state: its background color, its map and its photos, as resource names.
+ * Maps and photos are checked against the resources directory.
+ */
+class CompileTripsTask extends SourceTask {
+    @InputDirectory
+    File resDir
+
+    @OutputDirectory
+    File outputDir
+
+    @TaskAction
+    void compile() {
+        project.delete(outputDir)
+        outputDir.mkdirs()
+
+        for (File trip : source.files) {
+            String name = trip.name.substring(0, trip.name.lastIndexOf('.'))
+            File output = new File(outputDir, name + '.trip')
+
+            TripManifest.Builder builder = parse(trip)
+            output.withDataOutputStream { out -> builder.write(out) }
+            logger.info("Compiled ${trip.name}: ${builder.stateCount} states, ${output.length()} bytes")
+        }
+    }
+
+    TripManifest.Builder parse(File trip) {
+        TripManifest.Builder builder = new TripManifest.Builder()
+
+        int lineNumber = 0
+        for (String line : trip.readLines('UTF-8')) {
+            lineNumber++
+            line = line.trim()
+            if (line.isEmpty() || line.startsWith('#')) continue
+
+            String[] fields = line.split(/\s+/)
+            if (fields.length < 2) {
+                throw new GradleException("${trip}:${lineNumber}: expected a background and a map")
+            }
+
+            String map = fields[1]
+            checkResource(trip, lineNumber, 'raw', map)
+
+            List<String> photos = new ArrayList<String>()
+            for (int i = 2; i < fields.length; i++) {
+                checkResource(trip, lineNumber, 'drawable', fields[i])
+                photos.add(fields[i])
+            }
+
+            builder.addState(fields[0], map, photos)
+        }
+
+        return builder
+    }
+
+    void checkResource(File trip, int lineNumber, String type, String name) {
+        boolean found = false
+        for (File dir : resDir.listFiles()) {
+            if (dir.name != type && !dir.name.startsWith(type + '-')) continue
+            for (File file : dir.listFiles()) {
+                if (file.name.startsWith(name + '.')) {
+                    found = true
+                    break
+                }
+            }
+            if (found) break
+        }
+        if (!found) {
+            throw new GradleException("${trip}:${lineNumber}: no ${type} resource named ${name}")
+        }
+    }
+}